@@ -0,0 +1,391 @@
+package com.suarez.cordova.mapsforge;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+import org.mapsforge.core.graphics.Align;
+import org.mapsforge.core.graphics.Bitmap;
+import org.mapsforge.core.graphics.Canvas;
+import org.mapsforge.core.graphics.FontFamily;
+import org.mapsforge.core.graphics.FontStyle;
+import org.mapsforge.core.graphics.GraphicFactory;
+import org.mapsforge.core.graphics.Paint;
+import org.mapsforge.core.graphics.Style;
+import org.mapsforge.core.model.BoundingBox;
+import org.mapsforge.core.model.Point;
+import org.mapsforge.core.util.MercatorProjection;
+import org.mapsforge.map.layer.Layer;
+
+/**
+ * Layer that draws a large number of markers grouped in clusters. For every
+ * zoom level the map is divided in a grid of cells of {@link #CELL_SIZE}
+ * pixels, and every cell with more than one point is drawn as a circle with
+ * the number of points, at their centroid, while the cells with a single
+ * point are drawn as its marker. So the layer draws at most one marker per
+ * cell, whatever the number of points.
+ * <p>
+ * The cells of every zoom level are kept up to date in a background thread:
+ * adding or removing points only updates the cells that contain them, and
+ * the layer is redrawn once the update is done. Drawing does not compute any
+ * projection, since the cells keep the sum of the pixel coordinates of their
+ * points. Points can also be hidden, which takes them out of the cells
+ * without removing them from the layer.
+ *
+ * @author Adolfo Fernandez Suarez
+ * @version 0.1
+ */
+class ClusterLayer extends Layer {
+
+	/**
+	 * Side of the cells (in pixels, for tiles of 256 pixels).
+	 */
+	static final int CELL_SIZE = 64;
+
+	/**
+	 * Highest zoom level with its own cells. Higher zoom levels use the cells
+	 * of this one.
+	 */
+	static final byte MAX_ZOOM = 21;
+
+	// Pixel coordinates of the grids, independent of the tile size in use
+	private static final int GRID_TILE_SIZE = 256;
+
+	// Point of the layer, with its pixel coordinates at MAX_ZOOM
+	private static final class ClusterPoint {
+		final int key;
+		final double pixelX;
+		final double pixelY;
+		final Bitmap bitmap;
+		// Only used by the background thread
+		boolean hidden;
+
+		ClusterPoint(int key, double lat, double lng, Bitmap bitmap) {
+			this.key = key;
+			this.pixelX = MercatorProjection.longitudeToPixelX(lng, MAX_ZOOM,
+					GRID_TILE_SIZE);
+			this.pixelY = MercatorProjection.latitudeToPixelY(lat, MAX_ZOOM,
+					GRID_TILE_SIZE);
+			this.bitmap = bitmap;
+		}
+	}
+
+	// Points in a cell of the grid of a zoom level, in a set so removing one
+	// of them does not depend on the size of the cell
+	private static final class Cell {
+		final Set<ClusterPoint> points = new HashSet<ClusterPoint>(2);
+		double sumX;
+		double sumY;
+	}
+
+	// Points of the layer, by key. Updated as soon as they are added or
+	// removed, while the grids are updated in the background
+	private final Map<Integer, ClusterPoint> points = new HashMap<Integer, ClusterPoint>();
+	// Cells of every zoom level, by cell coordinates. Guarded by itself
+	private final List<Map<Long, Cell>> grids;
+	private final ExecutorService executor;
+
+	private final Paint circlePaint;
+	private final Paint borderPaint;
+	private final Paint textPaint;
+
+	/**
+	 * Creates an empty layer.
+	 *
+	 * @param graphicFactory
+	 *            Factory of the paints of the clusters
+	 * @param color
+	 *            Color (ARGB) of the circles of the clusters
+	 */
+	ClusterLayer(GraphicFactory graphicFactory, int color) {
+		grids = new ArrayList<Map<Long, Cell>>(MAX_ZOOM + 1);
+		for (int zoom = 0; zoom <= MAX_ZOOM; zoom++) {
+			grids.add(new HashMap<Long, Cell>());
+		}
+
+		executor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "mapsforge-cluster");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		circlePaint = graphicFactory.createPaint();
+		circlePaint.setColor(color);
+		circlePaint.setStyle(Style.FILL);
+
+		borderPaint = graphicFactory.createPaint();
+		borderPaint.setColor(0xffffffff);
+		borderPaint.setStyle(Style.STROKE);
+
+		textPaint = graphicFactory.createPaint();
+		textPaint.setColor(0xffffffff);
+		textPaint.setStyle(Style.FILL);
+		textPaint.setTextAlign(Align.CENTER);
+		textPaint.setTypeface(FontFamily.DEFAULT, FontStyle.BOLD);
+	}
+
+	/**
+	 * Adds points to the layer. Every point takes a reference to its bitmap,
+	 * given back when it is removed.
+	 *
+	 * @param keys
+	 *            Key of every point, which must not be used by any other point
+	 * @param lats
+	 *            Latitude of every point
+	 * @param lngs
+	 *            Longitude of every point
+	 * @param bitmaps
+	 *            Marker of every point, drawn when it is alone in its cell
+	 */
+	void add(int[] keys, double[] lats, double[] lngs, Bitmap[] bitmaps) {
+		final List<ClusterPoint> added = new ArrayList<ClusterPoint>(
+				keys.length);
+		for (int i = 0; i < keys.length; i++) {
+			ClusterPoint point = new ClusterPoint(keys[i], lats[i], lngs[i],
+					bitmaps[i]);
+			bitmaps[i].incrementRefCount();
+			added.add(point);
+		}
+
+		synchronized (points) {
+			for (ClusterPoint point : added) {
+				points.put(point.key, point);
+			}
+		}
+
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				updateGrids(added, true);
+			}
+		});
+	}
+
+	/**
+	 * Removes a point from the layer.
+	 *
+	 * @param key
+	 *            Key of the point
+	 * @return True if the point was in the layer, false otherwise
+	 */
+	boolean remove(int key) {
+		return remove(Collections.singletonList(key)) == 1;
+	}
+
+	/**
+	 * Removes points from the layer, redrawing it once.
+	 *
+	 * @param keys
+	 *            Keys of the points. The keys that are not in the layer are
+	 *            ignored
+	 * @return Number of points removed
+	 */
+	int remove(Collection<Integer> keys) {
+		final List<ClusterPoint> removed = new ArrayList<ClusterPoint>(
+				keys.size());
+		synchronized (points) {
+			for (Integer key : keys) {
+				ClusterPoint point = points.remove(key);
+				if (point != null) {
+					removed.add(point);
+				}
+			}
+		}
+		if (removed.isEmpty()) {
+			return 0;
+		}
+
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				List<ClusterPoint> shown = new ArrayList<ClusterPoint>(
+						removed.size());
+				for (ClusterPoint point : removed) {
+					if (!point.hidden) {
+						shown.add(point);
+					}
+				}
+				if (!shown.isEmpty()) {
+					updateGrids(shown, false);
+				}
+				for (ClusterPoint point : removed) {
+					point.bitmap.decrementRefCount();
+				}
+			}
+		});
+		return removed.size();
+	}
+
+	/**
+	 * Shows or hides points, redrawing the layer once.
+	 *
+	 * @param keys
+	 *            Keys of the points. The keys that are not in the layer are
+	 *            ignored
+	 * @param visible
+	 *            True to show the points, false to hide them
+	 */
+	void setVisible(Collection<Integer> keys, final boolean visible) {
+		final List<ClusterPoint> changed = new ArrayList<ClusterPoint>(
+				keys.size());
+		synchronized (points) {
+			for (Integer key : keys) {
+				ClusterPoint point = points.get(key);
+				if (point != null) {
+					changed.add(point);
+				}
+			}
+		}
+		if (changed.isEmpty()) {
+			return;
+		}
+
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				List<ClusterPoint> updated = new ArrayList<ClusterPoint>(
+						changed.size());
+				for (ClusterPoint point : changed) {
+					if (point.hidden == visible) {
+						point.hidden = !visible;
+						updated.add(point);
+					}
+				}
+				if (!updated.isEmpty()) {
+					updateGrids(updated, visible);
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return True if the point is in the layer, even if it is hidden
+	 */
+	boolean contains(int key) {
+		synchronized (points) {
+			return points.containsKey(key);
+		}
+	}
+
+	/**
+	 * @return Number of points in the layer
+	 */
+	int size() {
+		synchronized (points) {
+			return points.size();
+		}
+	}
+
+	@Override
+	public void draw(BoundingBox boundingBox, byte zoomLevel, Canvas canvas,
+			Point topLeftPoint) {
+		byte gridZoom = (byte) Math.min(zoomLevel, MAX_ZOOM);
+		int tileSize = displayModel.getTileSize();
+		// From the pixels of MAX_ZOOM to the pixels of the current zoom level
+		double scale = (double) tileSize / GRID_TILE_SIZE
+				* Math.pow(2, zoomLevel - MAX_ZOOM);
+		float scaleFactor = displayModel.getScaleFactor();
+		int radius = (int) (14 * scaleFactor);
+		int width = canvas.getWidth();
+		int height = canvas.getHeight();
+
+		borderPaint.setStrokeWidth(2 * scaleFactor);
+		textPaint.setTextSize(12 * scaleFactor);
+
+		Map<Long, Cell> grid = grids.get(gridZoom);
+		synchronized (grid) {
+			for (Cell cell : grid.values()) {
+				int count = cell.points.size();
+				int x = (int) (cell.sumX / count * scale - topLeftPoint.x);
+				int y = (int) (cell.sumY / count * scale - topLeftPoint.y);
+				if (count == 1) {
+					Bitmap bitmap = cell.points.iterator().next().bitmap;
+					// Drawn like a Marker, with its bottom on the point
+					int left = x - bitmap.getWidth() / 2;
+					int top = y - bitmap.getHeight();
+					if (left < width && top < height
+							&& left + bitmap.getWidth() > 0 && y > 0) {
+						canvas.drawBitmap(bitmap, left, top);
+					}
+				} else {
+					String text = Integer.toString(count);
+					int cellRadius = Math.max(radius,
+							textPaint.getTextWidth(text) / 2 + radius / 2);
+					if (x + cellRadius < 0 || y + cellRadius < 0
+							|| x - cellRadius > width
+							|| y - cellRadius > height) {
+						continue;
+					}
+					canvas.drawCircle(x, y, cellRadius, circlePaint);
+					canvas.drawCircle(x, y, cellRadius, borderPaint);
+					canvas.drawText(text, x,
+							y + textPaint.getTextHeight(text) / 2, textPaint);
+				}
+			}
+		}
+	}
+
+	@Override
+	public void onDestroy() {
+		executor.shutdownNow();
+
+		synchronized (points) {
+			for (ClusterPoint point : points.values()) {
+				point.bitmap.decrementRefCount();
+			}
+			points.clear();
+		}
+		for (Map<Long, Cell> grid : grids) {
+			synchronized (grid) {
+				grid.clear();
+			}
+		}
+	}
+
+	// Adds or removes points to the cells of every zoom level, and redraws
+	// the layer
+	private void updateGrids(Collection<ClusterPoint> changed, boolean add) {
+		for (int zoom = 0; zoom <= MAX_ZOOM; zoom++) {
+			// Pixels of MAX_ZOOM in a cell of this zoom level
+			long cellSize = (long) CELL_SIZE << (MAX_ZOOM - zoom);
+			Map<Long, Cell> grid = grids.get(zoom);
+			synchronized (grid) {
+				for (ClusterPoint point : changed) {
+					long cellX = (long) point.pixelX / cellSize;
+					long cellY = (long) point.pixelY / cellSize;
+					Long cellKey = (cellX << 32) | cellY;
+					Cell cell = grid.get(cellKey);
+					if (add) {
+						if (cell == null) {
+							cell = new Cell();
+							grid.put(cellKey, cell);
+						}
+						cell.points.add(point);
+						cell.sumX += point.pixelX;
+						cell.sumY += point.pixelY;
+					} else if (cell != null && cell.points.remove(point)) {
+						if (cell.points.isEmpty()) {
+							grid.remove(cellKey);
+						} else {
+							cell.sumX -= point.pixelX;
+							cell.sumY -= point.pixelY;
+						}
+					}
+				}
+			}
+		}
+
+		requestRedraw();
+	}
+}
@@ -0,0 +1,231 @@
+package com.suarez.cordova.mapsforge;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Stores every tile in its own file with the layout
+ * {@code /{zoom}/{x}/{y}.{extension}}, which is the layout used by the cache
+ * since its first version. Shared images are kept in
+ * {@code /shared/{name}.{extension}}.
+ * 
+ * @author Adolfo Fernandez Suarez
+ * @version 0.1
+ */
+class DirectoryTileStore implements TileStore {
+	private static final String SHARED_DIRECTORY = "shared";
+
+	private final File directory;
+	private final String extension;
+
+	/**
+	 * @param directory
+	 *            Root directory of the tiles
+	 * @param extension
+	 *            Extension of the tile files, without dot
+	 */
+	DirectoryTileStore(File directory, String extension) {
+		this.directory = directory;
+		this.extension = "." + extension;
+	}
+
+	@Override
+	public void clear() {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+
+		for (File file : files) {
+			if (file.isDirectory()) {
+				deleteDirectory(file);
+			}
+		}
+	}
+
+	@Override
+	public void close() {
+		// Nothing to release
+	}
+
+	@Override
+	public void flush() {
+		// Tiles are written straight away
+	}
+
+	@Override
+	public byte[] getData(byte zoom, long x, long y) throws IOException {
+		return readFile(getFile(zoom, x, y));
+	}
+
+	@Override
+	public byte[] getSharedData(String name) throws IOException {
+		return readFile(getSharedFile(name));
+	}
+
+	@Override
+	public String getSharedPath(String name) {
+		File sharedFile = getSharedFile(name);
+		return sharedFile.exists() ? sharedFile.getAbsolutePath() : null;
+	}
+
+	@Override
+	public String getPath(byte zoom, long x, long y) {
+		File tileFile = getFile(zoom, x, y);
+		return tileFile.exists() ? tileFile.getAbsolutePath() : null;
+	}
+
+	@Override
+	public String put(byte zoom, long x, long y, byte[] data)
+			throws IOException {
+		File tileDir = new File(directory, "/" + zoom + "/" + x + "/");
+		if (!writeFile(tileDir, y + extension, data)) {
+			throw new IOException("Couldn't store tile, x: " + x + ", y: " + y
+					+ ", zoom: " + zoom);
+		}
+		return new File(tileDir, y + extension).getAbsolutePath();
+	}
+
+	@Override
+	public String putShared(String name, byte[] data) throws IOException {
+		File sharedDir = new File(directory, SHARED_DIRECTORY);
+		if (!writeFile(sharedDir, name + extension, data)) {
+			throw new IOException("Couldn't store shared tile: " + name);
+		}
+		return new File(sharedDir, name + extension).getAbsolutePath();
+	}
+
+	@Override
+	public void removeShared(String name) {
+		getSharedFile(name).delete();
+	}
+
+	@Override
+	public void clearShared() {
+		File sharedDir = new File(directory, SHARED_DIRECTORY);
+		if (sharedDir.isDirectory()) {
+			deleteDirectory(sharedDir);
+		}
+	}
+
+	// Writes a file through a temporary one, so other threads never find a
+	// tile that is only partially written. Returns false if it can not be
+	// renamed
+	private static boolean writeFile(File dir, String name, byte[] data)
+			throws IOException {
+		dir.mkdirs();
+		File file = new File(dir, name);
+		File partFile = new File(dir, name + "."
+				+ Thread.currentThread().getId() + ".part");
+
+		OutputStream outStream = null;
+		try {
+			outStream = new FileOutputStream(partFile);
+			outStream.write(data);
+		} finally {
+			if (outStream != null) {
+				outStream.close();
+			}
+		}
+
+		if (!partFile.renameTo(file)) {
+			partFile.delete();
+			return false;
+		}
+		return true;
+	}
+
+	@Override
+	public void remove(byte zoom, long x, long y) {
+		getFile(zoom, x, y).delete();
+	}
+
+	@Override
+	public void removeAll(Collection<TileKey> tiles) {
+		for (TileKey tile : tiles) {
+			remove(tile.zoom, tile.x, tile.y);
+		}
+	}
+
+	@Override
+	public List<TileCacheIndex.Entry> scan() {
+		List<TileCacheIndex.Entry> found = new ArrayList<TileCacheIndex.Entry>();
+		File[] files = directory.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.isDirectory()
+						&& !SHARED_DIRECTORY.equals(file.getName())) {
+					scanDirectory(file, file.getName() + "/", found);
+				}
+			}
+		}
+		return found;
+	}
+
+	private void deleteDirectory(File dir) {
+		for (File file : dir.listFiles()) {
+			if (file.isDirectory()) {
+				deleteDirectory(file);
+			} else {
+				file.delete();
+			}
+		}
+		dir.delete();
+	}
+
+	// Returns the content of a file, or null if it does not exist
+	private static byte[] readFile(File file) throws IOException {
+		if (!file.exists()) {
+			return null;
+		}
+
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] data = new byte[(int) file.length()];
+			int offset = 0;
+			int read;
+			while (offset < data.length
+					&& (read = in.read(data, offset, data.length - offset)) != -1) {
+				offset += read;
+			}
+			return data;
+		} finally {
+			in.close();
+		}
+	}
+
+	private File getSharedFile(String name) {
+		return new File(directory, SHARED_DIRECTORY + "/" + name + extension);
+	}
+
+	private File getFile(byte zoom, long x, long y) {
+		return new File(directory, "/" + zoom + "/" + x + "/" + y + extension);
+	}
+
+	private void scanDirectory(File dir, String prefix,
+			List<TileCacheIndex.Entry> found) {
+		File[] files = dir.listFiles();
+		if (files == null) {
+			return;
+		}
+
+		for (File file : files) {
+			if (file.isDirectory()) {
+				scanDirectory(file, prefix + file.getName() + "/", found);
+			} else if (file.getName().endsWith(extension)) {
+				String name = file.getName();
+				String key = prefix
+						+ name.substring(0, name.length() - extension.length());
+				found.add(new TileCacheIndex.Entry(key, file.length(), file
+						.lastModified(), 0));
+			}
+		}
+	}
+}
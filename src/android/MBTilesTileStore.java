@@ -0,0 +1,362 @@
+package com.suarez.cordova.mapsforge;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import android.database.Cursor;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
+import android.util.Base64;
+import android.util.Log;
+
+/**
+ * Stores all the tiles in a single SQLite file that follows the MBTiles
+ * specification, so the cache can also be opened by other MBTiles readers.
+ * <p>
+ * New tiles are kept in memory and written in batches, each batch in a single
+ * transaction, either when there are enough of them or after a short delay.
+ * As there are no files to return, the paths of the tiles are the URLs of the
+ * local {@link TileServer}, set through {@link #setServerUrl(String)}. Only
+ * without a server, and for the tiny shared images, they are {@code data:}
+ * URLs with the encoded image, which are a third bigger than the image.
+ *
+ * @author Adolfo Fernandez Suarez
+ * @version 0.1
+ */
+class MBTilesTileStore implements TileStore {
+
+	// A tile waiting to be written
+	private static class PendingTile {
+		final byte zoom;
+		final long x;
+		final long y;
+		final byte[] data;
+
+		PendingTile(byte zoom, long x, long y, byte[] data) {
+			this.zoom = zoom;
+			this.x = x;
+			this.y = y;
+			this.data = data;
+		}
+	}
+
+	static final String FILE_NAME = "tiles.mbtiles";
+
+	// Tiles written in the same transaction
+	private static final int BATCH_SIZE = 32;
+	// Max time that a tile waits before being written
+	private static final long FLUSH_DELAY_MS = 1000;
+
+	private final SQLiteDatabase database;
+	private final String dataUrlPrefix;
+	private final String extension;
+	// Base URL of the tile server, null if it is not running
+	private volatile String serverUrl;
+	private final ConcurrentHashMap<String, PendingTile> pendingTiles = new ConcurrentHashMap<String, PendingTile>();
+	private final AtomicBoolean flushScheduled = new AtomicBoolean(false);
+	private final ScheduledExecutorService flusher;
+	private final Runnable flushTask = new Runnable() {
+		@Override
+		public void run() {
+			flushScheduled.set(false);
+			flush();
+		}
+	};
+
+	/**
+	 * Opens the MBTiles file in the given directory, creating it if
+	 * necessary.
+	 *
+	 * @param directory
+	 *            Directory of the cache
+	 * @param format
+	 *            Format of the tiles, written to the metadata table
+	 */
+	MBTilesTileStore(File directory, TileFormat format) {
+		dataUrlPrefix = "data:" + format.getMimeType() + ";base64,";
+		extension = format.getExtension();
+		database = SQLiteDatabase.openOrCreateDatabase(new File(directory,
+				FILE_NAME), null);
+		database.execSQL("CREATE TABLE IF NOT EXISTS metadata (name TEXT, value TEXT)");
+		database.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS metadata_index ON metadata (name)");
+		database.execSQL("CREATE TABLE IF NOT EXISTS tiles (zoom_level INTEGER, tile_column INTEGER, tile_row INTEGER, tile_data BLOB)");
+		database.execSQL("CREATE UNIQUE INDEX IF NOT EXISTS tile_index ON tiles (zoom_level, tile_column, tile_row)");
+
+		String[][] metadata = { { "name", "mapsforge-cordova-plugin" },
+				{ "type", "baselayer" }, { "version", "1.0" },
+				{ "description", "Tiles rendered with mapsforge" },
+				{ "format", format.getExtension() } };
+		for (String[] entry : metadata) {
+			database.execSQL(
+					"INSERT OR IGNORE INTO metadata (name, value) VALUES (?, ?)",
+					entry);
+		}
+
+		flusher = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "mapsforge-mbtiles");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+	}
+
+	@Override
+	public synchronized void clear() {
+		pendingTiles.clear();
+		database.execSQL("DELETE FROM tiles");
+		database.execSQL("VACUUM");
+	}
+
+	@Override
+	public void close() {
+		flusher.shutdown();
+		flush();
+		synchronized (this) {
+			database.close();
+		}
+	}
+
+	@Override
+	public synchronized void flush() {
+		if (pendingTiles.isEmpty() || !database.isOpen()) {
+			return;
+		}
+
+		List<Map.Entry<String, PendingTile>> batch = new ArrayList<Map.Entry<String, PendingTile>>(
+				pendingTiles.entrySet());
+		SQLiteStatement insert = database
+				.compileStatement("INSERT OR REPLACE INTO tiles (zoom_level, tile_column, tile_row, tile_data) VALUES (?, ?, ?, ?)");
+
+		database.beginTransaction();
+		try {
+			for (Map.Entry<String, PendingTile> entry : batch) {
+				PendingTile tile = entry.getValue();
+				insert.clearBindings();
+				insert.bindLong(1, tile.zoom);
+				insert.bindLong(2, tile.x);
+				insert.bindLong(3, getTileRow(tile.zoom, tile.y));
+				insert.bindBlob(4, tile.data);
+				insert.executeInsert();
+			}
+			database.setTransactionSuccessful();
+		} catch (RuntimeException e) {
+			Log.e(MapsforgePlugin.TAG, "Couldn't write tiles to MBTiles file",
+					e);
+			// The tiles stay pending, try again later
+			scheduleFlush(false);
+			return;
+		} finally {
+			database.endTransaction();
+			insert.close();
+		}
+
+		// Tiles replaced while writing stay pending for the next batch
+		for (Map.Entry<String, PendingTile> entry : batch) {
+			pendingTiles.remove(entry.getKey(), entry.getValue());
+		}
+		if (!pendingTiles.isEmpty()) {
+			scheduleFlush(false);
+		}
+	}
+
+	@Override
+	public byte[] getData(byte zoom, long x, long y) {
+		PendingTile pending = pendingTiles.get(getKey(zoom, x, y));
+		if (pending != null) {
+			return pending.data;
+		}
+
+		Cursor cursor = database
+				.rawQuery(
+						"SELECT tile_data FROM tiles WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?",
+						new String[] { String.valueOf(zoom), String.valueOf(x),
+								String.valueOf(getTileRow(zoom, y)) });
+		try {
+			return cursor.moveToFirst() ? cursor.getBlob(0) : null;
+		} finally {
+			cursor.close();
+		}
+	}
+
+	@Override
+	public byte[] getSharedData(String name) {
+		// Shared images are only kept in their data URLs
+		return null;
+	}
+
+	@Override
+	public String getSharedPath(String name) {
+		return null;
+	}
+
+	@Override
+	public String getPath(byte zoom, long x, long y) {
+		String url = serverUrl;
+		if (url != null) {
+			return contains(zoom, x, y) ? getTileUrl(url, zoom, x, y) : null;
+		}
+		byte[] data = getData(zoom, x, y);
+		return (data == null) ? null : toDataUrl(data);
+	}
+
+	@Override
+	public String put(byte zoom, long x, long y, byte[] data) {
+		pendingTiles.put(getKey(zoom, x, y), new PendingTile(zoom, x, y, data));
+		scheduleFlush(pendingTiles.size() >= BATCH_SIZE);
+		String url = serverUrl;
+		return (url == null) ? toDataUrl(data) : getTileUrl(url, zoom, x, y);
+	}
+
+	/**
+	 * Sets the tile server that serves the tiles of this store, so their
+	 * paths are its URLs instead of {@code data:} URLs.
+	 *
+	 * @param serverUrl
+	 *            Base URL of the server, e.g. {@code http://127.0.0.1:8080},
+	 *            or null if it is not running
+	 */
+	void setServerUrl(String serverUrl) {
+		this.serverUrl = serverUrl;
+	}
+
+	@Override
+	public String putShared(String name, byte[] data) {
+		// Data URLs carry the image, so there is nothing to store
+		return toDataUrl(data);
+	}
+
+	@Override
+	public synchronized void remove(byte zoom, long x, long y) {
+		pendingTiles.remove(getKey(zoom, x, y));
+		database.execSQL(
+				"DELETE FROM tiles WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?",
+				new Object[] { zoom, x, getTileRow(zoom, y) });
+	}
+
+	@Override
+	public synchronized void removeAll(Collection<TileKey> tiles) {
+		for (TileKey tile : tiles) {
+			pendingTiles.remove(getKey(tile.zoom, tile.x, tile.y));
+		}
+		if (tiles.isEmpty() || !database.isOpen()) {
+			return;
+		}
+
+		// A single transaction, instead of one per deleted tile
+		SQLiteStatement delete = database
+				.compileStatement("DELETE FROM tiles WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?");
+		database.beginTransaction();
+		try {
+			for (TileKey tile : tiles) {
+				delete.clearBindings();
+				delete.bindLong(1, tile.zoom);
+				delete.bindLong(2, tile.x);
+				delete.bindLong(3, getTileRow(tile.zoom, tile.y));
+				delete.execute();
+			}
+			database.setTransactionSuccessful();
+		} finally {
+			database.endTransaction();
+			delete.close();
+		}
+	}
+
+	@Override
+	public void removeShared(String name) {
+		// Nothing stored
+	}
+
+	@Override
+	public void clearShared() {
+		// Nothing stored
+	}
+
+	@Override
+	public List<TileCacheIndex.Entry> scan() {
+		flush();
+
+		List<TileCacheIndex.Entry> found = new ArrayList<TileCacheIndex.Entry>();
+		long now = System.currentTimeMillis();
+		Cursor cursor = database
+				.rawQuery(
+						"SELECT zoom_level, tile_column, tile_row, length(tile_data) FROM tiles",
+						null);
+		try {
+			while (cursor.moveToNext()) {
+				byte zoom = (byte) cursor.getInt(0);
+				long x = cursor.getLong(1);
+				long y = getTileRow(zoom, cursor.getLong(2));
+				found.add(new TileCacheIndex.Entry(getKey(zoom, x, y), cursor
+						.getLong(3), now, 0));
+			}
+		} finally {
+			cursor.close();
+		}
+		return found;
+	}
+
+	// MBTiles uses TMS rows, which start from the south. The conversion is
+	// the same in both directions
+	private static long getTileRow(byte zoom, long y) {
+		return (1L << zoom) - 1 - y;
+	}
+
+	private static String getKey(byte zoom, long x, long y) {
+		return zoom + "/" + x + "/" + y;
+	}
+
+	// Checks if a tile is stored, without reading its image
+	private boolean contains(byte zoom, long x, long y) {
+		if (pendingTiles.containsKey(getKey(zoom, x, y))) {
+			return true;
+		}
+
+		Cursor cursor = database
+				.rawQuery(
+						"SELECT 1 FROM tiles WHERE zoom_level = ? AND tile_column = ? AND tile_row = ?",
+						new String[] { String.valueOf(zoom), String.valueOf(x),
+								String.valueOf(getTileRow(zoom, y)) });
+		try {
+			return cursor.moveToFirst();
+		} finally {
+			cursor.close();
+		}
+	}
+
+	private String getTileUrl(String url, byte zoom, long x, long y) {
+		return url + "/" + zoom + "/" + x + "/" + y + "." + extension;
+	}
+
+	private String toDataUrl(byte[] data) {
+		return dataUrlPrefix
+				+ Base64.encodeToString(data, Base64.NO_WRAP);
+	}
+
+	// Writes the pending tiles now if the batch is full, or after a short
+	// delay otherwise
+	private void scheduleFlush(boolean now) {
+		try {
+			if (now) {
+				flusher.execute(flushTask);
+			} else if (flushScheduled.compareAndSet(false, true)) {
+				flusher.schedule(flushTask, FLUSH_DELAY_MS,
+						TimeUnit.MILLISECONDS);
+			}
+		} catch (RejectedExecutionException e) {
+			// The store has been closed, close() writes the pending tiles
+		}
+	}
+}
@@ -0,0 +1,338 @@
+package com.suarez.cordova.mapsforge;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import org.mapsforge.core.graphics.GraphicFactory;
+import org.mapsforge.core.graphics.TileBitmap;
+import org.mapsforge.core.model.BoundingBox;
+import org.mapsforge.core.model.LatLong;
+import org.mapsforge.core.model.Tile;
+import org.mapsforge.core.util.MercatorProjection;
+import org.mapsforge.map.layer.renderer.RendererJob;
+import org.mapsforge.map.model.DisplayModel;
+
+/**
+ * Map files rendered as a single map, for maps split in several files (e.g.
+ * one per country). Every file has its own {@link RendererPool}, and its
+ * bounding box is read from its header, so every tile is rendered with a
+ * single file, the one that covers it. Where several files overlap, e.g. near
+ * a border, the tile is rendered with the first file whose bounding box
+ * contains its center, so the tiles are not mixed pixel by pixel.
+ *
+ * @author Adolfo Fernandez Suarez
+ * @version 0.1
+ */
+class MapRegistry {
+
+	/**
+	 * Workers taken from the pools of the map files needed by some tiles.
+	 * They must be given back through {@link #release()}.
+	 */
+	static final class Renderers {
+		private final MapRegistry registry;
+		private final List<RendererPool.Worker> workers;
+
+		private Renderers(MapRegistry registry,
+				List<RendererPool.Worker> workers) {
+			this.registry = registry;
+			this.workers = workers;
+		}
+
+		/**
+		 * @return The registry the workers belong to
+		 */
+		MapRegistry getRegistry() {
+			return registry;
+		}
+
+		/**
+		 * Renders a tile with the map file that covers it. The tile must be
+		 * one of the tiles the workers were acquired for.
+		 *
+		 * @param tile
+		 *            Tile to render
+		 * @param theme
+		 *            Render theme
+		 * @param displayModel
+		 *            Display model of the renderers
+		 * @return The rendered tile
+		 * @throws IOException
+		 *             If the tile can not be rendered
+		 */
+		TileBitmap render(Tile tile, RenderThemeCache.Theme theme,
+				DisplayModel displayModel) throws IOException {
+			RendererPool pool = registry.getPool(tile);
+			RendererPool.Worker worker = getWorker(pool);
+			TileBitmap bitmap = (worker == null) ? null : worker.getRenderer(
+					theme).executeJob(
+					new RendererJob(tile, pool.getMapFile(), theme,
+							displayModel, 1f, false));
+			if (bitmap == null) {
+				throw new IOException("Couldn't render tile, x: " + tile.tileX
+						+ ", y: " + tile.tileY + ", zoom: " + tile.zoomLevel);
+			}
+			return bitmap;
+		}
+
+		/**
+		 * Gives back all the workers to their pools.
+		 */
+		void release() {
+			for (RendererPool.Worker worker : workers) {
+				worker.pool.release(worker);
+			}
+			workers.clear();
+		}
+
+		private RendererPool.Worker getWorker(RendererPool pool) {
+			for (RendererPool.Worker worker : workers) {
+				if (worker.pool == pool) {
+					return worker;
+				}
+			}
+			return null;
+		}
+	}
+
+	// Tile size used to find the center of the tiles, which does not depend
+	// on the tile size in use
+	private static final int CENTER_TILE_SIZE = 256;
+
+	private final List<RendererPool> pools;
+	private final String fingerprint;
+	private final int size;
+
+	/**
+	 * Opens the given map files.
+	 *
+	 * @param mapFiles
+	 *            Map files, in order of preference: where they overlap, the
+	 *            first ones render the tiles
+	 * @param graphicFactory
+	 *            Factory used by the renderers
+	 * @param size
+	 *            Number of workers of every map file
+	 * @param previous
+	 *            Registry being replaced, whose pools are reused for the map
+	 *            files that have not changed, or null. It must be destroyed
+	 *            with {@link #destroy(MapRegistry)} once this one is in use
+	 * @throws IllegalArgumentException
+	 *             If there are no map files, or one of them can not be opened
+	 */
+	MapRegistry(List<File> mapFiles, GraphicFactory graphicFactory, int size,
+			MapRegistry previous) throws IllegalArgumentException {
+		if (mapFiles.isEmpty()) {
+			throw new IllegalArgumentException("No map files");
+		}
+		if (size < 1) {
+			size = 1;
+		}
+
+		this.size = size;
+		this.pools = new ArrayList<RendererPool>(mapFiles.size());
+		try {
+			for (File mapFile : mapFiles) {
+				RendererPool pool = (previous == null) ? null : previous
+						.getReusablePool(mapFile, size);
+				if (pool == null) {
+					pool = new RendererPool(mapFile, graphicFactory, size);
+				}
+				pools.add(pool);
+			}
+		} catch (IllegalArgumentException e) {
+			destroyPools(previous);
+			throw e;
+		}
+
+		this.fingerprint = getFingerprint(pools);
+	}
+
+	/**
+	 * Takes, for every map file needed by the given tiles, one of its
+	 * workers, waiting until they are released if all of them are busy.
+	 *
+	 * @param tiles
+	 *            Tiles that are going to be rendered
+	 * @return The workers, or null if the registry has been destroyed
+	 *         meanwhile
+	 * @throws InterruptedException
+	 */
+	Renderers acquire(List<Tile> tiles) throws InterruptedException {
+		List<RendererPool> needed = new ArrayList<RendererPool>();
+		for (Tile tile : tiles) {
+			RendererPool pool = getPool(tile);
+			if (!needed.contains(pool)) {
+				needed.add(pool);
+			}
+		}
+
+		// Always in the order of the registry, so two threads never wait
+		// for each other's workers
+		Renderers renderers = new Renderers(this,
+				new ArrayList<RendererPool.Worker>(needed.size()));
+		for (RendererPool pool : pools) {
+			if (needed.contains(pool)) {
+				RendererPool.Worker worker = pool.acquire();
+				if (worker == null) {
+					renderers.release();
+					return null;
+				}
+				renderers.workers.add(worker);
+			}
+		}
+		return renderers;
+	}
+
+	/**
+	 * Returns the pool of the map file that renders a tile: the first one
+	 * whose bounding box contains the center of the tile or, if there is
+	 * none, the first one that covers part of the tile. If none of them
+	 * covers it, the first one is returned, which renders the background of
+	 * the map.
+	 *
+	 * @param tile
+	 *            The tile
+	 * @return The pool
+	 */
+	RendererPool getPool(Tile tile) {
+		LatLong center = new LatLong(MercatorProjection.pixelYToLatitude(
+				(tile.tileY + 0.5) * CENTER_TILE_SIZE, tile.zoomLevel,
+				CENTER_TILE_SIZE), MercatorProjection.pixelXToLongitude(
+				(tile.tileX + 0.5) * CENTER_TILE_SIZE, tile.zoomLevel,
+				CENTER_TILE_SIZE));
+		RendererPool covering = null;
+		for (RendererPool pool : pools) {
+			if (pool.getBoundingBox().contains(center)) {
+				return pool;
+			}
+			if (covering == null && intersects(pool.getBoundingBox(), tile)) {
+				covering = pool;
+			}
+		}
+		return (covering == null) ? pools.get(0) : covering;
+	}
+
+	/**
+	 * Tells whether any of the map files has data for a tile. The tiles that
+	 * are not covered only have the background of the map.
+	 *
+	 * @param tile
+	 *            The tile
+	 * @return True if the tile is inside the bounding box of a map file
+	 */
+	boolean covers(Tile tile) {
+		for (RendererPool pool : pools) {
+			if (intersects(pool.getBoundingBox(), tile)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return The map files, in order of preference
+	 */
+	List<File> getMapFiles() {
+		List<File> mapFiles = new ArrayList<File>(pools.size());
+		for (RendererPool pool : pools) {
+			mapFiles.add(pool.getMapFile());
+		}
+		return mapFiles;
+	}
+
+	/**
+	 * @return The pools of the map files, in order of preference
+	 */
+	List<RendererPool> getPools() {
+		return Collections.unmodifiableList(pools);
+	}
+
+	/**
+	 * Returns a short identifier of the map files and their versions, which
+	 * changes when a file is added, removed or updated. With a single map
+	 * file it is the fingerprint of that file.
+	 *
+	 * @return Eight hexadecimal digits
+	 */
+	String getFingerprint() {
+		return fingerprint;
+	}
+
+	/**
+	 * @return Number of workers of every map file
+	 */
+	int getSize() {
+		return size;
+	}
+
+	/**
+	 * Closes the pools of all the map files, except the ones reused by the
+	 * registry that replaces this one.
+	 *
+	 * @param next
+	 *            The new registry, or null
+	 */
+	void destroy(MapRegistry next) {
+		for (RendererPool pool : pools) {
+			if (next == null || !next.pools.contains(pool)) {
+				pool.destroy();
+			}
+		}
+	}
+
+	// Returns the pool of a map file, if it can be used by a new registry
+	private RendererPool getReusablePool(File mapFile, int size) {
+		for (RendererPool pool : pools) {
+			if (pool.getMapFile().getAbsolutePath()
+					.equals(mapFile.getAbsolutePath())
+					&& pool.getSize() == size && pool.isUpToDate()) {
+				return pool;
+			}
+		}
+		return null;
+	}
+
+	// Closes the pools opened by a registry that could not be created
+	private void destroyPools(MapRegistry previous) {
+		for (RendererPool pool : pools) {
+			if (previous == null || !previous.pools.contains(pool)) {
+				pool.destroy();
+			}
+		}
+	}
+
+	private static String getFingerprint(List<RendererPool> pools) {
+		if (pools.size() == 1) {
+			return pools.get(0).getMapFingerprint();
+		}
+
+		CRC32 crc = new CRC32();
+		for (RendererPool pool : pools) {
+			try {
+				crc.update(pool.getMapFingerprint().getBytes("US-ASCII"));
+			} catch (UnsupportedEncodingException e) {
+				// Every Java platform has US-ASCII
+				throw new IllegalStateException(e);
+			}
+		}
+		return String.format("%08x", crc.getValue());
+	}
+
+	// Tiles that only touch the edge of a bounding box are not inside it
+	private static boolean intersects(BoundingBox box, Tile tile) {
+		return box.minLatitude < MercatorProjection.tileYToLatitude(
+				tile.tileY, tile.zoomLevel)
+				&& box.maxLatitude > MercatorProjection.tileYToLatitude(
+						tile.tileY + 1, tile.zoomLevel)
+				&& box.minLongitude < MercatorProjection.tileXToLongitude(
+						tile.tileX + 1, tile.zoomLevel)
+				&& box.maxLongitude > MercatorProjection.tileXToLongitude(
+						tile.tileX, tile.zoomLevel);
+	}
+}
@@ -2,23 +2,36 @@ package com.suarez.cordova.mapsforge;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
 
 import org.mapsforge.core.graphics.TileBitmap;
+import org.mapsforge.core.model.BoundingBox;
 import org.mapsforge.core.model.Tile;
 import org.mapsforge.map.android.graphics.AndroidGraphicFactory;
-import org.mapsforge.map.layer.renderer.DatabaseRenderer;
-import org.mapsforge.map.layer.renderer.RendererJob;
 import org.mapsforge.map.model.DisplayModel;
-import org.mapsforge.map.reader.MapDatabase;
-import org.mapsforge.map.rendertheme.ExternalRenderTheme;
-import org.mapsforge.map.rendertheme.XmlRenderTheme;
 
 import android.app.Activity;
-import android.content.res.AssetManager;
+import android.graphics.Bitmap;
 
 /**
  * This class creates a tile cache using mapsforge libraries. When a tile is not
@@ -37,6 +50,151 @@ public class MapsforgeCache {
 	 */
 	public static MapsforgeCache INSTANCE;
 
+	/**
+	 * Storage type that keeps every tile in its own PNG file, with the layout
+	 * {@code /{zoom}/{x}/{y}.png}.
+	 */
+	public static final String STORAGE_DIRECTORY = "directory";
+
+	/**
+	 * Storage type that keeps all the tiles in a single MBTiles (SQLite) file.
+	 * The paths returned for the tiles are URLs of the local tile server,
+	 * which is started with the storage, or {@code data:} URLs if it is
+	 * stopped.
+	 */
+	public static final String STORAGE_MBTILES = "mbtiles";
+
+	/**
+	 * Tile format PNG. Its quality is the compression level, from 0 to 9, or
+	 * -1 for the default encoder.
+	 */
+	public static final String FORMAT_PNG = "png";
+
+	/**
+	 * Tile format JPEG, with a quality from 0 to 100. It has no transparency.
+	 */
+	public static final String FORMAT_JPEG = "jpeg";
+
+	/**
+	 * Tile format WebP (lossy), with a quality from 0 to 100.
+	 */
+	public static final String FORMAT_WEBP = "webp";
+
+	/**
+	 * Tile format WebP lossless. The quality is ignored.
+	 */
+	public static final String FORMAT_WEBP_LOSSLESS = "webp-lossless";
+
+	/**
+	 * Highest zoom level whose tiles can be requested.
+	 */
+	public static final byte MAX_ZOOM = 22;
+
+	// Part of maxCacheSize that seedings can fill
+	private static final double SEEDING_QUOTA = 0.9;
+	// Part of maxCacheSize kept after an eviction
+	private static final double LOW_WATER_MARK = 0.8;
+	// Tiles removed at once by the evictor
+	private static final int EVICTION_BATCH = 64;
+	// Threads that look for the requested tiles in the storage
+	private static final int LOOKUP_THREADS = 2;
+
+	/**
+	 * Receives the result of {@link MapsforgeCache#requestTile}. Exactly one
+	 * of its methods is called, from any thread.
+	 */
+	interface TileCallback {
+		/**
+		 * @param path
+		 *            Path (or URL) of the tile
+		 */
+		void onTile(String path);
+
+		/**
+		 * @param error
+		 *            Why the tile could not be served
+		 */
+		void onError(Exception error);
+
+		/**
+		 * Called when the request is dropped because it is no longer needed.
+		 */
+		void onDropped();
+	}
+
+	// Result of a render in progress, completed by the thread that renders
+	// the tile (or the whole block of a metatile) and awaited by every
+	// request for that tile
+	private class PendingRender {
+		final TileKey key;
+		private final CountDownLatch done = new CountDownLatch(1);
+		private volatile String path;
+		private volatile Throwable error;
+
+		PendingRender(TileKey key) {
+			this.key = key;
+		}
+
+		void complete(String path) {
+			this.path = path;
+			done.countDown();
+			inFlightRenders.remove(key, this);
+		}
+
+		void fail(Throwable error) {
+			this.error = error;
+			done.countDown();
+			inFlightRenders.remove(key, this);
+		}
+
+		// Waits for the render and returns its result
+		String await() throws IOException {
+			try {
+				done.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException("Interrupted while waiting for a tile");
+			}
+
+			Throwable cause = error;
+			if (cause == null) {
+				return path;
+			} else if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IOException(cause.getMessage());
+		}
+	}
+
+	// Image shared by all the uniform tiles of a color in a partition
+	private static class SharedTile {
+		final String path;
+		final byte[] data;
+
+		SharedTile(String path, byte[] data) {
+			this.path = path;
+			this.data = data;
+		}
+	}
+
+	/**
+	 * Checks the coordinates of a tile before it is looked up or rendered.
+	 * 
+	 * @return True if the zoom level is between 0 and {@link #MAX_ZOOM} and
+	 *         both x and y are between 0 and 2^zoom - 1, false otherwise
+	 */
+	static boolean isValidTile(byte zoom, long x, long y) {
+		if (zoom < 0 || zoom > MAX_ZOOM) {
+			return false;
+		}
+		long tiles = 1L << zoom;
+		return x >= 0 && x < tiles && y >= 0 && y < tiles;
+	}
+
 	/**
 	 * Creates a new instance for the tile cache using the map file provided.
 	 * 
@@ -50,6 +208,12 @@ public class MapsforgeCache {
 	 */
 	public static void createInstance(Activity context, String mapFilePath)
 			throws IllegalArgumentException, IOException {
+		// The previous instance would keep its threads, map files and index
+		// open
+		if (INSTANCE != null) {
+			INSTANCE.onDestroy();
+			INSTANCE = null;
+		}
 		INSTANCE = new MapsforgeCache(context, mapFilePath);
 	}
 
@@ -62,34 +226,106 @@ public class MapsforgeCache {
 	// Trigger that cleans the cache if there is no space available on memory
 	private int cleanCacheTrigger;
 	private boolean cacheEnabled;
+	// Size (in MB) of the in-memory tier in front of the disk cache
+	private int memoryCacheSize;
 	private boolean externalCache;
 	private String cacheName;
+	private String storageType;
 	// Additional config
 	private int tileSize;
 	private float overdrawFactor;
 	private float screenRatio;
 	// Check for remove cache on destroy
 	private boolean cleanOnDestroy;
-	// Map file to get tiles from
-	private String mapFilePath;
+	// Map files to get tiles from
+	private List<String> mapFilePaths;
+	// Number of tiles that can be rendered at the same time
+	private int rendererCount;
 
 	// Max time of an image in cache (minimum of 15 seconds)
 	private long maxCacheAge;
 	// Objects needed for tile rendering and cache control
-	private Tile tile;
-	private RendererJob rendererJob;
-	private DatabaseRenderer renderer;
-	private final MapDatabase mapDatabase = new MapDatabase();
-	private XmlRenderTheme renderTheme;
+	private volatile MapRegistry mapRegistry;
+	private TileRequestScheduler requestScheduler;
+	private volatile RenderThemeCache.Theme renderTheme;
+	private volatile TileMemoryCache memoryCache;
 	private final DisplayModel displayModel = new DisplayModel();
-	private TileBitmap bitmap;
 	private String relativeCachePath;
-	private File cacheDir;
-	private File mapFile;
-	private long currentCacheSize;
-	private long lastCleaning;
+	private volatile File cacheDir;
+	// Encoding of the new tiles
+	private volatile TileFormat tileFormat;
+	// Partition (subdirectory of the cache) of the tiles being served, named
+	// {format}_{theme}_{map}. Tiles of other formats, render themes or
+	// versions of the map are kept in their own partitions
+	private volatile String partition;
+	// Store of every partition, opened on demand
+	private final ConcurrentHashMap<String, TileStore> tileStores = new ConcurrentHashMap<String, TileStore>();
+	private volatile TileCacheIndex cacheIndex;
 	// Directory for tiles when cache is not enabled
 	private File tmpDir;
+	private volatile TileStore tmpStore;
+	// Local HTTP server for the tiles, null if it is not running
+	private TileServer tileServer;
+	// Size (in tiles) of the side of the metatiles, 1 if disabled
+	private volatile int metatileSize;
+	// Renders the metatiles, with as many threads as renderers
+	private ThreadPoolExecutor metatileExecutor;
+	// Renders waiting for a renderer, guarded by renderWaitLock. The
+	// metatile siblings give their renderers back to them
+	private final Object renderWaitLock = new Object();
+	private int waitingRenders;
+	// Renders in progress, so a tile is not rendered twice at the same time
+	private final ConcurrentHashMap<TileKey, PendingRender> inFlightRenders = new ConcurrentHashMap<TileKey, PendingRender>();
+	// Background eviction of the least recently used tiles
+	private final AtomicBoolean evictionScheduled = new AtomicBoolean(false);
+	private final ExecutorService evictor = Executors
+			.newSingleThreadExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "mapsforge-evictor");
+					thread.setDaemon(true);
+					thread.setPriority(Thread.MIN_PRIORITY);
+					return thread;
+				}
+			});
+	// Looks for the requested tiles in the storage, so the bridge thread
+	// never waits for the disk and the hits never wait behind the renders
+	private final ThreadPoolExecutor lookupExecutor = new ThreadPoolExecutor(
+			LOOKUP_THREADS, LOOKUP_THREADS, 30, TimeUnit.SECONDS,
+			new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					Thread thread = new Thread(r, "mapsforge-tile-lookup");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
+	private final Runnable evictionTask = new Runnable() {
+		@Override
+		public void run() {
+			evictionScheduled.set(false);
+			evictTiles();
+		}
+	};
+	// Seedings in progress, by id
+	private final ConcurrentHashMap<Integer, TileSeeder> seeders = new ConcurrentHashMap<Integer, TileSeeder>();
+	private final AtomicInteger seederIds = new AtomicInteger();
+	// Tiles being rendered by the seeders, guarded by seedingLock
+	private final Object seedingLock = new Object();
+	private int seedingRenders;
+	// Statistics
+	private final AtomicLong renders = new AtomicLong();
+	private final AtomicLong savedRenders = new AtomicLong();
+	private final AtomicLong skippedRenders = new AtomicLong();
+	// Store identical tiles once, as shared images named after their hash
+	private volatile boolean deduplication;
+	// Held while a shared image is added or removed, so it is never deleted
+	// while a new tile starts using it
+	private final Object blobLock = new Object();
+	// Images of the uniform tiles, by partition and color
+	private final ConcurrentHashMap<String, SharedTile> uniformTiles = new ConcurrentHashMap<String, SharedTile>();
+	// Encoding statistics, by format
+	private final ConcurrentHashMap<String, TileFormat.Stats> formatStats = new ConcurrentHashMap<String, TileFormat.Stats>();
 
 	/**
 	 * Constructor that initializes the mapsforge cache with default values.
@@ -97,13 +333,19 @@ public class MapsforgeCache {
 	 * <p>
 	 * {@code maxCacheSize}: 25MB<br/>
 	 * {@code cleanCacheTrigger}: 5MB<br/>
+	 * {@code memoryCacheSize}: 4MB<br/>
 	 * {@code cacheEnabled}: true<br/>
 	 * {@code externalCache}: true<br/>
 	 * {@code cacheName}: mapcache<br/>
+	 * {@code storageType}: directory<br/>
+	 * {@code tileFormat}: png<br/>
 	 * <p>
 	 * {@code tileSize}: 256<br/>
 	 * {@code overdrawFactor}: 1.2<br/>
 	 * {@code screenRatio}: 1.0<br/>
+	 * {@code rendererCount}: number of available processors<br/>
+	 * {@code metatileSize}: 1 (disabled)<br/>
+	 * {@code deduplication}: false<br/>
 	 * <p>
 	 * {@code cleanOnDestroy}: true<br/>
 	 * <p>
@@ -129,37 +371,44 @@ public class MapsforgeCache {
 			throws IllegalArgumentException, IOException {
 		// Context
 		setContext(context);
+		this.tmpDir = new File(this.context.getCacheDir(), "/tmp");
+		this.tmpDir.mkdirs();
 		// Graphic factory
 		setGraphicFactory(AndroidGraphicFactory.INSTANCE);
 		// Cache default config
 		setMaxCacheSize(25);
 		setCleanCacheTrigger(5);
+		setMemoryCacheSize(4);
+		setTileFormat(FORMAT_PNG, TileFormat.DEFAULT_PNG_LEVEL);
 		setCacheEnabled(true);
+		setStorageType(STORAGE_DIRECTORY);
 		setExternalCache(true);
 		setCacheName("mapcache");
 		// Tiles default config
 		setTileSize(256);
 		setOverdrawFactor(1.2f);
 		setScreenRatio(1f);
+		setRendererCount(0);
+		setMetatileSize(1);
+		lookupExecutor.allowCoreThreadTimeOut(true);
+		setDeduplication(false);
 		// We'll delete the cache on destroy
 		setCleanOnDestroy(true);
 		// Setting the map path
 		setMapFilePath(mapFilePath);
 
 		createCacheDirectory();
-		prepareMapThemes();
+		ThemeAssets.extract(this.context);
 
-		renderTheme = new ExternalRenderTheme(new File(
-				this.context.getFilesDir(), "/renderthemes/assets.xml"));
-
-		this.tmpDir = new File(this.context.getCacheDir(), "/tmp");
-		this.tmpDir.mkdirs();
+		renderTheme = ThemeAssets.load(this.context, ThemeAssets.DEFAULT_THEME);
+		updatePartition();
 	}
 
 	// Check if there is enough space for a cache, and adjust its size if the
 	// maxSize specified is higher than the usable space
 	private void checkCacheAvailability() {
 		long usable = cacheDir.getUsableSpace();
+		long currentCacheSize = cacheIndex.getTotalSize();
 		long maxSize = (maxCacheSize * 1024 * 1024) - currentCacheSize;
 		long cleanCache = cleanCacheTrigger * 1024 * 1024;
 
@@ -168,23 +417,20 @@ public class MapsforgeCache {
 		}
 
 		if (maxSize > usable) {
-			setMaxCacheSize((int) (usable + folderSize(cacheDir))
-					/ (1024 * 1024));
+			setMaxCacheSize((int) ((usable + currentCacheSize) / (1024 * 1024)));
 		}
 
 	}
 
-	// Checks the cache size and if it is necessary to clean it up
+	// Checks the cache size and, if it is necessary to clean it up, starts
+	// the eviction in the background
 	private void checkCacheSize() {
-		if (currentCacheSize >= (maxCacheSize * 1024 * 1024)
-				|| cacheDir.getUsableSpace() <= (cleanCacheTrigger * 1024 * 1024)) {
-			setCacheEnabled(false);
-			cleanCache();
-			currentCacheSize = folderSize(cacheDir);
-			setCacheEnabled(true);
-
-			for (File file : tmpDir.listFiles()) {
-				file.delete();
+		if (needsEviction(maxCacheSize * 1024L * 1024L)
+				&& evictionScheduled.compareAndSet(false, true)) {
+			try {
+				evictor.execute(evictionTask);
+			} catch (RuntimeException e) {
+				evictionScheduled.set(false);
 			}
 		}
 	}
@@ -198,35 +444,9 @@ public class MapsforgeCache {
 		return false;
 	}
 
-	// Cleans up the cache. Deletes all images with age > maxCacheAge. If the
-	// last cleaning has ocurred in the last 5 seconds, the cache size is
-	// increased in 5 MB to avoid be all the time cleaning it
-	private void cleanCache() {
-		long currentTime = System.currentTimeMillis();
-
-		if (lastCleaning >= (currentTime - 5000)) {
-			setMaxCacheSize(getMaxCacheSize() + 5);
-			checkCacheAvailability();
-		}
-
-		for (File file : cacheDir.listFiles()) {
-			deleteDirectory(file, currentTime - maxCacheAge);
-		}
-		lastCleaning = currentTime;
-	}
-
-	// Copy an inputStream in an outputStream
-	private void copyFile(InputStream in, OutputStream out) throws IOException {
-		byte[] buffer = new byte[1024];
-		int read;
-		while ((read = in.read(buffer)) != -1) {
-			out.write(buffer, 0, read);
-		}
-	}
-
 	// Creates the cache directory. If there is not possible to create it in the
 	// SD card it will be created in the device's memory
-	private void createCacheDirectory() {
+	private synchronized void createCacheDirectory() {
 		if (this.externalCache) {
 			cacheDir = new File(this.context.getExternalCacheDir(),
 					relativeCachePath);
@@ -236,11 +456,29 @@ public class MapsforgeCache {
 			cacheDir.mkdirs();
 		}
 
-		this.currentCacheSize = folderSize(cacheDir);
+		if (cacheIndex != null) {
+			cacheIndex.close();
+		}
+		closeTileStores();
+
+		cacheIndex = new TileCacheIndex(cacheDir, new TileCacheIndex.Scanner() {
+			@Override
+			public List<TileCacheIndex.Entry> scan() {
+				return scanTileStores();
+			}
+		});
 		checkCacheSize();
 		checkCacheAvailability();
 	}
 
+	// Closes the cache and deletes all its files
+	private synchronized void deleteCache() {
+		memoryCache.clear();
+		cacheIndex.close();
+		closeTileStores();
+		deleteDirectory(cacheDir, System.currentTimeMillis());
+	}
+
 	// Delete all files in a directory (and sub-directories) with the
 	// lastModified attribute < timestamp
 	private void deleteDirectory(File directory, long timestamp) {
@@ -255,18 +493,199 @@ public class MapsforgeCache {
 		}
 	}
 
-	// Returns the size in bytes of the file passed as argument. If it is a
-	// directory, this function will return the size of it and its
-	// sub-directories
-	private long folderSize(File directory) {
-		long size = 0;
-		for (File file : directory.listFiles()) {
-			if (file.isFile())
-				size += file.length();
-			else
-				size += folderSize(file);
+	// Closes the stores of all the partitions
+	private synchronized void closeTileStores() {
+		for (TileStore store : tileStores.values()) {
+			store.close();
+		}
+		tileStores.clear();
+		uniformTiles.clear();
+	}
+
+	// Returns the store of a partition, opening it if necessary
+	private TileStore getTileStore(String partition) {
+		TileStore store = tileStores.get(partition);
+		if (store == null) {
+			synchronized (this) {
+				store = tileStores.get(partition);
+				if (store == null) {
+					File directory = new File(cacheDir, partition);
+					directory.mkdirs();
+					TileFormat format = getFormat(partition);
+					if (STORAGE_MBTILES.equals(storageType)) {
+						MBTilesTileStore mbtiles = new MBTilesTileStore(
+								directory, format);
+						mbtiles.setServerUrl(getMBTilesServerUrl());
+						store = mbtiles;
+					} else {
+						store = new DirectoryTileStore(directory,
+								format.getExtension());
+					}
+					tileStores.put(partition, store);
+				}
+			}
+		}
+		return store;
+	}
+
+	// Returns the base URL of the tile server that serves the MBTiles tiles,
+	// starting it if necessary, or null if it can not be started
+	private synchronized String getMBTilesServerUrl() {
+		if (tileServer == null) {
+			try {
+				startTileServer(0);
+			} catch (IOException e) {
+				// The tiles will be returned as data URLs
+				return null;
+			}
+		}
+		return "http://127.0.0.1:" + tileServer.getPort();
+	}
+
+	// Passes the URL of the tile server to the MBTiles stores, after it is
+	// started or stopped. The memory tier is emptied, since it keeps the
+	// previous URLs
+	private void updateMBTilesServerUrl() {
+		String url = (tileServer == null) ? null : "http://127.0.0.1:"
+				+ tileServer.getPort();
+		boolean updated = false;
+		for (TileStore store : tileStores.values()) {
+			if (store instanceof MBTilesTileStore) {
+				((MBTilesTileStore) store).setServerUrl(url);
+				updated = true;
+			}
+		}
+		if (updated) {
+			memoryCache.clear();
+		}
+	}
+
+	// Returns the format of the tiles of a partition
+	private TileFormat getFormat(String partition)
+			throws IllegalArgumentException {
+		int separator = partition.indexOf('_');
+		String formatId = (separator < 0) ? partition : partition.substring(0,
+				separator);
+		TileFormat current = tileFormat;
+		return formatId.equals(current.getId()) ? current : TileFormat
+				.fromId(formatId);
+	}
+
+	// Checks if a directory of the cache is a partition
+	private boolean isPartition(String name) {
+		String[] parts = name.split("_");
+		if (parts.length != 3 || !parts[1].matches("[0-9a-f]{8}")
+				|| !parts[2].matches("[0-9a-f]{8}")) {
+			return false;
+		}
+		try {
+			return getFormat(name).getId().equals(parts[0]);
+		} catch (IllegalArgumentException e) {
+			return false;
+		}
+	}
+
+	// Part of the partition name that depends on the render theme and the
+	// map files
+	private static String getRenderSuffix(RenderThemeCache.Theme theme,
+			MapRegistry registry) {
+		return "_" + theme.getHash().substring(0, 8) + "_"
+				+ registry.getFingerprint();
+	}
+
+	// Sets the partition of the current format, theme and map
+	private synchronized void updatePartition() {
+		if (tileFormat != null && renderTheme != null && mapRegistry != null) {
+			partition = tileFormat.getId()
+					+ getRenderSuffix(renderTheme, mapRegistry);
+		}
+	}
+
+	// Returns the names of the partitions in the cache directory
+	private List<String> listPartitions() {
+		List<String> partitions = new ArrayList<String>();
+		File[] files = cacheDir.listFiles();
+		if (files != null) {
+			for (File file : files) {
+				if (file.isDirectory() && isPartition(file.getName())) {
+					partitions.add(file.getName());
+				}
+			}
+		}
+		return partitions;
+	}
+
+	// Lists the tiles of every partition, with keys partition/zoom/x/y
+	private List<TileCacheIndex.Entry> scanTileStores() {
+		deleteLegacyTiles();
+
+		List<TileCacheIndex.Entry> found = new ArrayList<TileCacheIndex.Entry>();
+		uniformTiles.clear();
+		for (String name : listPartitions()) {
+			TileStore store = getTileStore(name);
+			// The tiles that used the shared images were only known by the
+			// lost index
+			store.clearShared();
+			for (TileCacheIndex.Entry entry : store.scan()) {
+				found.add(new TileCacheIndex.Entry(name + "/" + entry.key,
+						entry.size, entry.lastAccess, entry.renderCost));
+			}
+		}
+		return found;
+	}
+
+	// Deletes the tiles written by previous versions, which are not tied to
+	// a render theme and a map: PNG files in the root of the cache directory,
+	// the root MBTiles file, and partitions named after a format only. Other
+	// files are left alone, since the directory may be shared with the tile
+	// cache of MapsforgeNative
+	private void deleteLegacyTiles() {
+		File[] files = cacheDir.listFiles();
+		if (files == null) {
+			return;
+		}
+
+		for (File file : files) {
+			String name = file.getName();
+			if (file.isDirectory() && name.matches("\\d+")) {
+				deleteFiles(file, ".png");
+			} else if (file.isDirectory() && isFormatId(name)) {
+				deleteDirectory(file, Long.MAX_VALUE);
+				file.delete();
+			} else if (file.isFile()
+					&& name.startsWith(MBTilesTileStore.FILE_NAME)) {
+				file.delete();
+			}
+		}
+	}
+
+	// Deletes the files with the given extension in a directory (and
+	// sub-directories), and the directories left empty
+	private void deleteFiles(File directory, String extension) {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			return;
+		}
+
+		for (File file : files) {
+			if (file.isDirectory()) {
+				deleteFiles(file, extension);
+			} else if (file.getName().endsWith(extension)) {
+				file.delete();
+			}
+		}
+		String[] left = directory.list();
+		if (left != null && left.length == 0) {
+			directory.delete();
+		}
+	}
+
+	private static boolean isFormatId(String name) {
+		try {
+			return TileFormat.fromId(name).getId().equals(name);
+		} catch (IllegalArgumentException e) {
+			return false;
 		}
-		return size;
 	}
 
 	/**
@@ -310,10 +729,20 @@ public class MapsforgeCache {
 	/**
 	 * Returns the path of the map file that mapsforge is using
 	 * 
-	 * @return The path to the map file(.map).
+	 * @return The path to the map file(.map), or to the first one if there
+	 *         are several.
 	 */
 	public String getMapFilePath() {
-		return mapFilePath;
+		return mapFilePaths.get(0);
+	}
+
+	/**
+	 * Returns the paths of the map files that mapsforge is using
+	 * 
+	 * @return The paths to the map files(.map), in order of preference.
+	 */
+	public List<String> getMapFilePaths() {
+		return Collections.unmodifiableList(mapFilePaths);
 	}
 
 	/**
@@ -327,6 +756,26 @@ public class MapsforgeCache {
 		return maxCacheAge;
 	}
 
+	/**
+	 * Returns the size of the metatiles, i.e. the number of tiles rendered
+	 * together in each direction.
+	 * 
+	 * @return The side of the metatiles (in tiles), 1 if they are disabled
+	 */
+	public int getMetatileSize() {
+		return metatileSize;
+	}
+
+	/**
+	 * Returns the size of the in-memory tier that keeps the tiles served
+	 * recently.
+	 * 
+	 * @return The size of the memory cache(in MB)
+	 */
+	public int getMemoryCacheSize() {
+		return memoryCacheSize;
+	}
+
 	/**
 	 * Returns the maxCacheSize attribute. The default value for this attribute
 	 * is 25MB, but if there is no enough space, it will be adjusted to fit the
@@ -353,12 +802,74 @@ public class MapsforgeCache {
 		return screenRatio;
 	}
 
+	/**
+	 * Returns statistics about the cache: number of tiles ({@code tiles}),
+	 * size in bytes ({@code size}), tiles rendered since the cache was created
+	 * ({@code renders}), and requests that got the tile from a render already
+	 * in progress instead of rendering it again ({@code savedRenders}). Tiles
+	 * of a single color share one image per color: {@code uniformTiles} is
+	 * how many of them are in the cache, and {@code skippedRenders} the tiles
+	 * that were not rendered at all because no map file covers them. With
+	 * {@code deduplication} enabled, identical tiles share one image:
+	 * {@code blobs} is the number of those images, and {@code dedupeRatio}
+	 * the size of the tiles divided by the space they actually use. The
+	 * current tile format is in {@code format}, the current partition of the
+	 * cache in {@code partition}, and {@code formats} has, for
+	 * every format used since the cache was created, the number of tiles
+	 * encoded, their size and the time spent encoding them. {@code maps} lists
+	 * the map files in use with their bounding boxes.
+	 * 
+	 * @return The statistics
+	 * @throws JSONException
+	 */
+	public JSONObject getStats() throws JSONException {
+		JSONObject formats = new JSONObject();
+		for (Map.Entry<String, TileFormat.Stats> entry : formatStats
+				.entrySet()) {
+			formats.put(entry.getKey(), entry.getValue().toJSON());
+		}
+
+		JSONArray maps = new JSONArray();
+		for (RendererPool pool : mapRegistry.getPools()) {
+			BoundingBox box = pool.getBoundingBox();
+			JSONObject map = new JSONObject();
+			map.put("path", pool.getMapFile().getAbsolutePath());
+			map.put("minLatitude", box.minLatitude);
+			map.put("minLongitude", box.minLongitude);
+			map.put("maxLatitude", box.maxLatitude);
+			map.put("maxLongitude", box.maxLongitude);
+			maps.put(map);
+		}
+
+		JSONObject stats = new JSONObject();
+		stats.put("tiles", cacheIndex.getCount());
+		stats.put("size", cacheIndex.getTotalSize());
+		stats.put("renders", renders.get());
+		stats.put("savedRenders", savedRenders.get());
+		stats.put("skippedRenders", skippedRenders.get());
+		stats.put("uniformTiles", cacheIndex.getUniformCount());
+		stats.put("deduplication", deduplication);
+		stats.put("blobs", cacheIndex.getBlobCount());
+		stats.put("dedupeRatio", (cacheIndex.getTotalSize() == 0) ? 1
+				: (double) cacheIndex.getLogicalSize()
+						/ cacheIndex.getTotalSize());
+		stats.put("format", tileFormat.toString());
+		stats.put("partition", partition);
+		stats.put("formats", formats);
+		stats.put("maps", maps);
+		return stats;
+	}
+
 	/**
 	 * This method will return the path to the tile image that represents the
 	 * given coordinates and zoom. If the cache is enabled, it will render the
 	 * image iff it is not available in the cache. If the cache it is not
 	 * enabled, it will render the image always, even if there is a previous one
 	 * already stored in the device.
+	 * <p>
+	 * This method may be called from several threads at the same time. Tiles
+	 * found in the cache are returned straight away, and up to
+	 * {@code rendererCount} missing tiles are rendered in parallel.
 	 * 
 	 * @param x
 	 *            Latitude point
@@ -366,74 +877,167 @@ public class MapsforgeCache {
 	 *            Longitude point
 	 * @param zoom
 	 *            Zoom
-	 * @return The absolute path to the tile image
+	 * @return The absolute path to the tile image, or its URL in the tile
+	 *         server when the storage type is {@code mbtiles}
 	 * @throws IOException
 	 */
-	public synchronized String getTilePath(long x, long y, byte zoom)
-			throws IOException {
-		String path = null;
+	public String getTilePath(long x, long y, byte zoom) throws IOException {
+		boolean cached = isCacheEnabled();
+		TileKey key = new TileKey(partition, zoom, x, y);
+		String indexKey = getIndexKey(key);
+
+		if (cached) {
+			String path = getCachedTilePath(key, indexKey);
+			if (path != null) {
+				return path;
+			}
+		}
+
 		if (!cacheDir.exists()) {
 			if (externalCache) {
 				checkExternalCache();
 			}
 			createCacheDirectory();
 		}
-		File tileFile = null;
 
-		if (isCacheEnabled()) {
-			tileFile = new File(cacheDir, "/" + zoom + "/" + x + "/" + y
-					+ ".png");
+		return renderOnce(key, indexKey, cached, true, false);
+	}
+
+	// Returns the path of a tile from the memory tier or the storage, or null
+	// if it has to be rendered
+	private String getCachedTilePath(TileKey key, String indexKey)
+			throws IOException {
+		TileMemoryCache.Entry entry = memoryCache.get(key);
+		if (entry != null) {
+			cacheIndex.recordAccess(indexKey, System.currentTimeMillis());
+			return entry.path;
 		}
 
-		if (tileFile != null && tileFile.exists()) {
-			path = tileFile.getAbsolutePath();
-			tileFile.setLastModified(System.currentTimeMillis());
-		} else {
-			tileFile = null;
-			tile = new Tile(x, y, zoom);
-			rendererJob = new RendererJob(tile, mapFile, renderTheme,
-					displayModel, 1f, false);
-			bitmap = renderer.executeJob(rendererJob);
+		if (!cacheDir.exists()) {
+			return null;
+		}
 
-			if (bitmap != null) {
-				OutputStream outStream = null;
+		Integer color = cacheIndex.getUniformColor(indexKey);
+		if (color != null) {
+			SharedTile tile = getUniformTile(key.partition, color);
+			cacheIndex.recordAccess(indexKey, System.currentTimeMillis());
+			memoryCache.put(key, tile.path, null);
+			return tile.path;
+		}
 
-				try {
-					if (isCacheEnabled()) {
-						new File(cacheDir, "/" + zoom + "/" + x + "/").mkdirs();
-						tileFile = new File(cacheDir, "/" + zoom + "/" + x
-								+ "/" + y + ".png");
-					} else {
-						new File(tmpDir, "/" + zoom + "/" + x + "/").mkdirs();
-						tileFile = new File(tmpDir, "/" + zoom + "/" + x + "/"
-								+ y + ".png");
-						if (tileFile.exists()) {
-							tileFile.delete();
-						}
-					}
-					outStream = new FileOutputStream(tileFile);
-					bitmap.compress(outStream);
-
-					path = tileFile.getAbsolutePath();
-					tileFile.setLastModified(System.currentTimeMillis());
-					if (isCacheEnabled()) {
-						currentCacheSize += tileFile.length();
-						checkCacheSize();
-					}
-				} finally {
-					if (outStream != null) {
-						outStream.close();
-					}
-				}
+		TileStore tileStore = getTileStore(key.partition);
+		String blob = cacheIndex.getBlob(indexKey);
+		String path = (blob == null) ? tileStore.getPath(key.zoom, key.x,
+				key.y) : tileStore.getSharedPath(getBlobName(blob));
+		if (path != null) {
+			long now = System.currentTimeMillis();
+			if (!cacheIndex.recordAccess(indexKey, now)) {
+				byte[] data = tileStore.getData(key.zoom, key.x, key.y);
+				cacheIndex.recordPut(indexKey, (data == null) ? 0
+						: data.length, now, 0);
+			}
+			memoryCache.put(key, path, null);
+		}
+		return path;
+	}
+
+	/**
+	 * Returns the encoded image of the tile that represents the given
+	 * coordinates and zoom, rendering it if necessary like
+	 * {@link #getTilePath(long, long, byte)} does.
+	 * 
+	 * @param x
+	 *            Tile x
+	 * @param y
+	 *            Tile y
+	 * @param zoom
+	 *            Zoom
+	 * @return The image of the tile, encoded with the current tile format
+	 * @throws IOException
+	 */
+	public byte[] getTileData(long x, long y, byte zoom) throws IOException {
+		String path = getTilePath(x, y, zoom);
+		byte[] data = null;
 
-			} else {
-				throw new IOException("Couldn't render tile, x: " + x + ", y: "
-						+ y + ", zoom: " + zoom);
+		if (isCacheEnabled()) {
+			TileKey key = new TileKey(partition, zoom, x, y);
+			TileMemoryCache.Entry entry = memoryCache.get(key);
+			if (entry != null && entry.data != null) {
+				return entry.data;
+			}
+
+			String indexKey = getIndexKey(key);
+			Integer color = cacheIndex.getUniformColor(indexKey);
+			if (color != null) {
+				return getUniformTile(key.partition, color).data;
 			}
 
+			TileStore tileStore = getTileStore(key.partition);
+			String blob = cacheIndex.getBlob(indexKey);
+			data = (blob == null) ? tileStore.getData(zoom, x, y) : tileStore
+					.getSharedData(getBlobName(blob));
+			if (data != null) {
+				// Later requests of this tile will not read the storage
+				memoryCache.put(key, path, data);
+			}
 		}
 
-		return path;
+		if (data == null) {
+			data = tmpStore.getData(zoom, x, y);
+		}
+		if (data == null) {
+			throw new FileNotFoundException("Tile not available, x: " + x
+					+ ", y: " + y + ", zoom: " + zoom);
+		}
+		return data;
+	}
+
+	/**
+	 * Returns the URL template of the local tile server.
+	 * 
+	 * @return The template, e.g. {@code http://127.0.0.1:port/{z}/{x}/{y}.png}
+	 *         , or null if the server is not running
+	 */
+	public synchronized String getTileServerUrl() {
+		return (tileServer == null) ? null : tileServer.getUrlTemplate();
+	}
+
+	/**
+	 * Returns the number of renderers used to generate the tiles that are not
+	 * in the cache.
+	 * 
+	 * @return The maximum number of tiles rendered at the same time
+	 */
+	public int getRendererCount() {
+		return rendererCount;
+	}
+
+	/**
+	 * Returns the storage type used by the cache.
+	 * 
+	 * @return {@link #STORAGE_DIRECTORY} or {@link #STORAGE_MBTILES}
+	 */
+	public String getStorageType() {
+		return storageType;
+	}
+
+	/**
+	 * Returns the image format of the tiles.
+	 * 
+	 * @return {@link #FORMAT_PNG}, {@link #FORMAT_JPEG}, {@link #FORMAT_WEBP}
+	 *         or {@link #FORMAT_WEBP_LOSSLESS}
+	 */
+	public String getTileFormat() {
+		return tileFormat.getName();
+	}
+
+	/**
+	 * Returns the quality of the tile format.
+	 * 
+	 * @return The compression level for PNG, or the quality for JPEG and WebP
+	 */
+	public int getTileQuality() {
+		return tileFormat.getQuality();
 	}
 
 	/**
@@ -465,6 +1069,16 @@ public class MapsforgeCache {
 		return cleanOnDestroy;
 	}
 
+	/**
+	 * Returns the flag that indicates whether or not identical tiles are
+	 * stored once.
+	 * 
+	 * @return True if the deduplication is enabled, false otherwise
+	 */
+	public boolean isDeduplication() {
+		return deduplication;
+	}
+
 	/**
 	 * Returns the flag that indicates whether or not it's being used the
 	 * external cache(SD card).
@@ -477,55 +1091,692 @@ public class MapsforgeCache {
 
 	/**
 	 * Destroys the temporal images that have been generated, and cleans up the
-	 * cache if the flag for that is set up.
+	 * cache if the flag for that is set up. The threads, the map files and the
+	 * cache index are released, so the instance can not be used afterwards.
 	 */
 	public void onDestroy() {
-		long currentTime = System.currentTimeMillis();
-		deleteDirectory(tmpDir, currentTime);
+		stopTileServer();
+		for (TileSeeder seeder : seeders.values()) {
+			seeder.cancel();
+		}
+		lookupExecutor.shutdownNow();
+		evictor.shutdownNow();
+		synchronized (this) {
+			if (requestScheduler != null) {
+				requestScheduler.shutdown();
+			}
+			if (metatileExecutor != null) {
+				metatileExecutor.shutdownNow();
+			}
+			if (mapRegistry != null) {
+				mapRegistry.destroy(null);
+			}
+		}
+		tmpStore.clear();
 		if (cleanOnDestroy) {
-			deleteDirectory(cacheDir, currentTime);
+			memoryCache.clear();
+			for (String name : listPartitions()) {
+				getTileStore(name).clear();
+			}
+			uniformTiles.clear();
+			cacheIndex.clear();
+		} else {
+			for (TileStore store : tileStores.values()) {
+				store.flush();
+			}
+			cacheIndex.flush();
 		}
+		closeTileStores();
+		tmpStore.close();
+		cacheIndex.close();
 	}
 
-	// Copies all XML files for the themes to the internal storage
-	private void prepareMapThemes() throws IOException {
-		copyFileOrDirInAssets("renderthemes");
+	/**
+	 * Starts rendering in the background all the missing tiles inside the
+	 * given bounds, for every zoom level from <code>minZoom</code> to
+	 * <code>maxZoom</code>.
+	 * 
+	 * @param listener
+	 *            Receives the progress of the seeding
+	 * @return The seeder, whose id can be used to pause, resume or cancel it
+	 * @throws IllegalArgumentException
+	 *             If the bounds or the zoom range are not valid
+	 * @throws IllegalStateException
+	 *             If the cache is not enabled
+	 */
+	TileSeeder startSeeding(double minLat, double minLng, double maxLat,
+			double maxLng, byte minZoom, byte maxZoom,
+			final TileSeeder.Listener listener)
+			throws IllegalArgumentException, IllegalStateException {
+		if (!isCacheEnabled()) {
+			throw new IllegalStateException(
+					"The cache must be enabled to seed tiles");
+		}
+
+		TileSeeder seeder = new TileSeeder(seederIds.incrementAndGet(),
+				this, minLat, minLng, maxLat, maxLng, minZoom, maxZoom,
+				new TileSeeder.Listener() {
+					@Override
+					public void onProgress(TileSeeder seeder) {
+						if (seeder.isFinished()) {
+							seeders.remove(seeder.getId());
+						}
+						listener.onProgress(seeder);
+					}
+				});
+		seeders.put(seeder.getId(), seeder);
+		seeder.start();
+		return seeder;
 	}
-	
-	private void copyFileOrDirInAssets(String path) throws IOException {
-		AssetManager assetManager = context.getAssets();
-		String assets[] = null;
-		assets = assetManager.list(path);
-		if (assets.length == 0) {
-			copyFileInAssets(path);
-		} else {
-			String fullPath = this.context.getFilesDir() + "/" + path;
 
-			File dir = new File(fullPath);
-			if (!dir.exists())
-				dir.mkdir();
-			for (int i = 0; i < assets.length; ++i) {
-				copyFileOrDirInAssets(path + "/" + assets[i]);
+	/**
+	 * @param id
+	 *            Id of the seeding
+	 * @return The seeder, or null if it does not exist or it has finished
+	 */
+	TileSeeder getSeeder(int id) {
+		return seeders.get(id);
+	}
+
+	/**
+	 * Serves a tile request. Tiles in the memory tier are served straight
+	 * away, on the calling thread, which does not touch the disk. The other
+	 * tiles are looked for in the storage by a small pool of threads, so the
+	 * hits never wait behind a render, and only the missing tiles are queued,
+	 * to be rendered with as many threads as renderers, the tiles closest to
+	 * the center of the viewport first.
+	 * 
+	 * @param callback
+	 *            Receives the path of the tile
+	 */
+	void requestTile(final long x, final long y, final byte zoom,
+			final TileCallback callback) {
+		final TileRequestScheduler.Callback render = new TileRequestScheduler.Callback() {
+			@Override
+			public void run() {
+				String path;
+				try {
+					path = getTilePath(x, y, zoom);
+				} catch (Exception e) {
+					callback.onError(e);
+					return;
+				}
+				callback.onTile(path);
+			}
+
+			@Override
+			public void dropped() {
+				callback.onDropped();
+			}
+		};
+
+		if (!isCacheEnabled()) {
+			requestScheduler.submit(zoom, x, y, render);
+			return;
+		}
+
+		final TileKey key = new TileKey(partition, zoom, x, y);
+		final String indexKey = getIndexKey(key);
+		final TileMemoryCache.Entry entry = memoryCache.get(key);
+		if (entry != null) {
+			// The access time is written by the lookup threads
+			lookupExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					cacheIndex.recordAccess(indexKey,
+							System.currentTimeMillis());
+				}
+			});
+			callback.onTile(entry.path);
+			return;
+		}
+
+		lookupExecutor.execute(new Runnable() {
+			@Override
+			public void run() {
+				String path;
+				try {
+					path = getCachedTilePath(key, indexKey);
+				} catch (IOException e) {
+					path = null;
+				}
+				if (path != null) {
+					callback.onTile(path);
+				} else {
+					requestScheduler.submit(zoom, x, y, render);
+				}
+			}
+		});
+	}
+
+	// Checks if the seeders can add more tiles to the cache. They stop at
+	// SEEDING_QUOTA of maxCacheSize, so there is still room for the tiles
+	// browsed meanwhile without cleaning the cache (which would delete the
+	// seeded tiles)
+	boolean hasRoomForSeeding() {
+		long maxSize = (long) (maxCacheSize * 1024L * 1024L * SEEDING_QUOTA);
+		return cacheIndex.getTotalSize() < maxSize
+				&& cacheDir.getUsableSpace() > cleanCacheTrigger * 1024L * 1024L;
+	}
+
+	// Renders and stores a tile for a seeder, unless it is already in the
+	// cache. Seeded tiles are not kept in the memory cache. Returns false if
+	// the tile was already in the cache
+	boolean seedTile(long x, long y, byte zoom) throws IOException {
+		TileKey key = new TileKey(partition, zoom, x, y);
+		String indexKey = getIndexKey(key);
+		if (cacheIndex.contains(indexKey)) {
+			return false;
+		}
+
+		synchronized (seedingLock) {
+			try {
+				while (seedingRenders >= getSeedingRendererCount()) {
+					seedingLock.wait();
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new IOException(
+						"Interrupted while waiting for a renderer");
+			}
+			seedingRenders++;
+		}
+		try {
+			renderOnce(key, indexKey, true, false, true);
+		} finally {
+			synchronized (seedingLock) {
+				seedingRenders--;
+				seedingLock.notifyAll();
+			}
+		}
+		return true;
+	}
+
+	// Number of tiles that all the seeders together can render at the same
+	// time. One renderer is left for the tiles requested by the map, unless
+	// there is only one
+	int getSeedingRendererCount() {
+		return Math.max(1, rendererCount - 1);
+	}
+
+	// Checks if the cache is over the given size, or if the free space has
+	// reached the cleaning trigger
+	private boolean needsEviction(long size) {
+		return cacheIndex.getTotalSize() > size
+				|| cacheDir.getUsableSpace() <= cleanCacheTrigger * 1024L * 1024L;
+	}
+
+	// Removes the least recently used tiles, in small batches, until the cache
+	// is under the low water mark. Tiles used in the last maxCacheAge
+	// milliseconds are never removed. Runs in the evictor thread: tile
+	// requests go on while it works, and it only holds the lock of the cache
+	// during each batch
+	private void evictTiles() {
+		boolean evicting = true;
+		while (evicting) {
+			synchronized (this) {
+				long lowWaterMark = (long) (maxCacheSize * 1024L * 1024L
+						* LOW_WATER_MARK);
+				long protectedSince = System.currentTimeMillis() - maxCacheAge;
+				List<String> removed = new ArrayList<String>(EVICTION_BATCH);
+
+				if (needsEviction(lowWaterMark)) {
+					// Entries come least recently used first, so once one of
+					// them is protected all the next ones are too
+					for (TileCacheIndex.Entry entry : cacheIndex
+							.getLeastRecentlyUsed(EVICTION_BATCH)) {
+						if (entry.lastAccess >= protectedSince) {
+							break;
+						}
+						removed.add(entry.key);
+					}
+					removeTiles(removed);
+				}
+				evicting = !removed.isEmpty();
+			}
+			Thread.yield();
+		}
+
+		tmpStore.clear();
+	}
+
+	// Removes tiles, given their keys in the cache index, from the cache. The
+	// tiles of every partition are removed from its store at once
+	private void removeTiles(List<String> indexKeys) {
+		List<TileKey> removed = new ArrayList<TileKey>(indexKeys.size());
+		Map<String, List<TileKey>> stored = new HashMap<String, List<TileKey>>();
+		synchronized (blobLock) {
+			for (String indexKey : indexKeys) {
+				String[] parts = indexKey.split("/");
+				TileKey key = new TileKey(parts[0], Byte.parseByte(parts[1]),
+						Long.parseLong(parts[2]), Long.parseLong(parts[3]));
+				removed.add(key);
+				TileCacheIndex.Entry entry = cacheIndex.recordRemove(indexKey);
+				if (entry != null && entry.blob != null) {
+					if (!cacheIndex.isBlobReferenced(key.partition, entry.blob)) {
+						getTileStore(key.partition).removeShared(
+								getBlobName(entry.blob));
+					}
+				} else {
+					List<TileKey> tiles = stored.get(key.partition);
+					if (tiles == null) {
+						tiles = new ArrayList<TileKey>();
+						stored.put(key.partition, tiles);
+					}
+					tiles.add(key);
+				}
+			}
+			for (Map.Entry<String, List<TileKey>> partition : stored
+					.entrySet()) {
+				getTileStore(partition.getKey()).removeAll(
+						partition.getValue());
+			}
+		}
+		for (TileKey key : removed) {
+			memoryCache.remove(key);
+		}
+	}
+
+	// Key of a tile in the cache index: partition/zoom/x/y
+	private static String getIndexKey(TileKey key) {
+		return key.partition + "/" + key.zoom + "/" + key.x + "/" + key.y;
+	}
+
+	// Renders and stores a tile. Only one render per tile runs at the same
+	// time: later requests for a tile that is being rendered wait for the
+	// same result. In the metatile mode the rest of the block is rendered in
+	// the background once the tile is stored, except for the seeded tiles,
+	// which are rendered one by one so the seeders never hold more renderers
+	// than their share
+	private String renderOnce(TileKey key, String indexKey, boolean cached,
+			boolean keepInMemory, boolean seeding) throws IOException {
+		PendingRender render = new PendingRender(key);
+		PendingRender running = inFlightRenders.putIfAbsent(key, render);
+		if (running != null) {
+			savedRenders.incrementAndGet();
+			return running.await();
+		}
+
+		String path;
+		try {
+			path = renderAndStoreTile(key, indexKey, cached, keepInMemory,
+					seeding);
+			render.complete(path);
+		} catch (IOException e) {
+			render.fail(e);
+			throw e;
+		} catch (RuntimeException e) {
+			render.fail(e);
+			throw e;
+		} catch (Error e) {
+			render.fail(e);
+			throw e;
+		}
+
+		if (cached && metatileSize > 1 && !seeding) {
+			queueMetatile(key);
+		}
+		return path;
+	}
+
+	// Queues the missing tiles of the metatile (block of metatileSize x
+	// metatileSize tiles) that contains the given tile, which has just been
+	// rendered. Requests for those tiles wait for this render instead of
+	// starting a new one
+	private void queueMetatile(TileKey key) {
+		final List<PendingRender> siblings = new ArrayList<PendingRender>();
+		long maxTile = (1L << key.zoom) - 1;
+		long firstX = key.x - key.x % metatileSize;
+		long firstY = key.y - key.y % metatileSize;
+		for (long y = firstY; y < firstY + metatileSize && y <= maxTile; y++) {
+			for (long x = firstX; x < firstX + metatileSize && x <= maxTile; x++) {
+				TileKey siblingKey = new TileKey(key.partition, key.zoom, x, y);
+				if ((x == key.x && y == key.y)
+						|| cacheIndex.contains(getIndexKey(siblingKey))) {
+					continue;
+				}
+
+				PendingRender sibling = new PendingRender(siblingKey);
+				if (inFlightRenders.putIfAbsent(sibling.key, sibling) == null) {
+					siblings.add(sibling);
+				}
+			}
+		}
+		if (siblings.isEmpty()) {
+			return;
+		}
+
+		try {
+			metatileExecutor.execute(new Runnable() {
+				@Override
+				public void run() {
+					renderSiblings(siblings);
+				}
+			});
+		} catch (RuntimeException e) {
+			for (PendingRender pending : siblings) {
+				pending.fail(e);
+			}
+		}
+	}
+
+	// Renders and stores the rest of a metatile, in order, with the same
+	// renderers, so the map data and the labels near the tile edges are read
+	// from their caches instead of being computed again for every tile. The
+	// renderers are given back between two tiles whenever another render is
+	// waiting for them, so the background tiles never delay the visible ones
+	private void renderSiblings(List<PendingRender> siblings) {
+		MapRegistry.Renderers renderers = null;
+		try {
+			for (int i = 0; i < siblings.size(); i++) {
+				PendingRender pending = siblings.get(i);
+				TileKey key = pending.key;
+				try {
+					Integer color = getBackgroundColor(key);
+					if (color != null) {
+						pending.complete(storeUniformTile(key,
+								getIndexKey(key), color, 0, false));
+						continue;
+					}
+
+					if (renderers != null && hasWaitingRenders()) {
+						renderers.release();
+						renderers = null;
+					}
+					if (renderers == null) {
+						List<Tile> tiles = new ArrayList<Tile>(siblings.size()
+								- i);
+						for (PendingRender next : siblings.subList(i,
+								siblings.size())) {
+							tiles.add(new Tile(next.key.x, next.key.y,
+									next.key.zoom));
+						}
+						renderers = acquireRenderers(tiles, true);
+					}
+
+					renders.incrementAndGet();
+					long renderStart = System.currentTimeMillis();
+					TileBitmap bitmap = renderTile(renderers, key);
+					long renderCost = System.currentTimeMillis() - renderStart;
+
+					pending.complete(storeTile(key, getIndexKey(key), bitmap,
+							renderCost, true, false));
+				} catch (Exception e) {
+					pending.fail(e);
+				}
+			}
+		} finally {
+			if (renderers != null) {
+				renderers.release();
+			}
+		}
+	}
+
+	// Renders a tile, encodes it and stores it in the cache (or in the
+	// temporary directory if the cache is not enabled). Background renders
+	// let the other ones take the renderers first
+	private String renderAndStoreTile(TileKey key, String indexKey,
+			boolean cached, boolean keepInMemory, boolean background)
+			throws IOException {
+		if (cached) {
+			Integer color = getBackgroundColor(key);
+			if (color != null) {
+				return storeUniformTile(key, indexKey, color, 0, keepInMemory);
+			}
+		}
+
+		renders.incrementAndGet();
+		long renderStart = System.currentTimeMillis();
+		TileBitmap bitmap;
+		MapRegistry.Renderers renderers = acquireRenderers(
+				Collections.singletonList(new Tile(key.x, key.y, key.zoom)),
+				background);
+		try {
+			bitmap = renderTile(renderers, key);
+		} finally {
+			renderers.release();
+		}
+		long renderCost = System.currentTimeMillis() - renderStart;
+
+		return storeTile(key, indexKey, bitmap, renderCost, cached,
+				keepInMemory);
+	}
+
+	// Encodes a rendered tile with the format of its partition and stores it
+	// in the cache (or in the temporary directory if the cache is not
+	// enabled)
+	private String storeTile(TileKey key, String indexKey, TileBitmap bitmap,
+			long renderCost, boolean cached, boolean keepInMemory)
+			throws IOException {
+		if (cached) {
+			Integer color = getUniformColor(bitmap);
+			if (color != null) {
+				bitmap.decrementRefCount();
+				return storeUniformTile(key, indexKey, color, renderCost,
+						keepInMemory);
+			}
+		}
+
+		TileFormat format = getFormat(key.partition);
+		long encodeStart = System.currentTimeMillis();
+		byte[] data;
+		try {
+			data = format.encode(bitmap);
+		} finally {
+			bitmap.decrementRefCount();
+		}
+		getFormatStats(format).record(data.length,
+				System.currentTimeMillis() - encodeStart);
+
+		if (cached && deduplication && STORAGE_DIRECTORY.equals(storageType)) {
+			return storeBlobTile(key, indexKey, data, renderCost,
+					keepInMemory);
+		}
+
+		String path = (cached ? getTileStore(key.partition) : tmpStore).put(
+				key.zoom, key.x, key.y, data);
+
+		if (cached) {
+			if (keepInMemory) {
+				memoryCache.put(key, path, data);
+			}
+			cacheIndex.recordPut(indexKey, data.length,
+					System.currentTimeMillis(), renderCost);
+			checkCacheSize();
+		}
+
+		return path;
+	}
+
+	// Stores a tile as the shared image named after the hash of its data,
+	// which is only written if no other tile uses it yet
+	private String storeBlobTile(TileKey key, String indexKey, byte[] data,
+			long renderCost, boolean keepInMemory) throws IOException {
+		String blob = RenderThemeCache.getHash(data);
+		String name = getBlobName(blob);
+		TileStore store = getTileStore(key.partition);
+		String path;
+		synchronized (blobLock) {
+			path = cacheIndex.isBlobReferenced(key.partition, blob) ? store
+					.getSharedPath(name) : null;
+			if (path == null) {
+				path = store.putShared(name, data);
+			}
+			String previous = cacheIndex.getBlob(indexKey);
+			cacheIndex.recordBlob(indexKey, blob, data.length,
+					System.currentTimeMillis(), renderCost);
+			if (previous != null
+					&& !cacheIndex.isBlobReferenced(key.partition, previous)) {
+				store.removeShared(getBlobName(previous));
+			}
+		}
+		// The plain file of a tile stored before deduplication was enabled
+		store.remove(key.zoom, key.x, key.y);
+
+		if (keepInMemory) {
+			memoryCache.put(key, path, data);
+		}
+		checkCacheSize();
+		return path;
+	}
+
+	// Name of the shared image of a deduplicated tile
+	private static String getBlobName(String blob) {
+		return "blob-" + blob;
+	}
+
+	// Records in the cache a tile of a single color, which uses the image
+	// shared by all the tiles of that color instead of a file of its own
+	private String storeUniformTile(TileKey key, String indexKey, int color,
+			long renderCost, boolean keepInMemory) throws IOException {
+		SharedTile tile = getUniformTile(key.partition, color);
+		if (keepInMemory) {
+			// The image is not kept with the entry, it is shared
+			memoryCache.put(key, tile.path, null);
+		}
+		cacheIndex.recordUniform(indexKey, color, System.currentTimeMillis(),
+				renderCost);
+		return tile.path;
+	}
+
+	// Returns the image shared by the uniform tiles of a color, encoding and
+	// storing it the first time
+	private SharedTile getUniformTile(String partition, int color)
+			throws IOException {
+		String name = "uniform-" + String.format("%08x", color);
+		String key = partition + "/" + name;
+		SharedTile tile = uniformTiles.get(key);
+		if (tile == null) {
+			TileBitmap bitmap = graphicFactory.createTileBitmap(
+					displayModel.getTileSize(), false);
+			byte[] data;
+			try {
+				bitmap.setBackgroundColor(color);
+				data = getFormat(partition).encode(bitmap);
+			} finally {
+				bitmap.decrementRefCount();
+			}
+
+			tile = new SharedTile(getTileStore(partition).putShared(name,
+					data), data);
+			SharedTile previous = uniformTiles.putIfAbsent(key, tile);
+			if (previous != null) {
+				tile = previous;
+			}
+		}
+		return tile;
+	}
+
+	// Color of a tile that no map file covers, which only has the background
+	// of the render theme, so it does not need to be rendered. Null if the
+	// tile has to be rendered, or if the theme or the map files have changed
+	// since it was requested
+	private Integer getBackgroundColor(TileKey key) {
+		MapRegistry registry = mapRegistry;
+		RenderThemeCache.Theme theme = renderTheme;
+		if (registry.covers(new Tile(key.x, key.y, key.zoom))
+				|| !key.partition.endsWith(getRenderSuffix(theme, registry))) {
+			return null;
+		}
+		skippedRenders.incrementAndGet();
+		return theme.getMapBackground();
+	}
+
+	// Returns the color of a rendered tile if all its pixels have the same
+	// one, or null otherwise. Most tiles differ in the first row, so it is
+	// cheap compared to encoding them
+	private static Integer getUniformColor(TileBitmap bitmap) {
+		Bitmap pixels = AndroidGraphicFactory.getBitmap(bitmap);
+		int width = pixels.getWidth();
+		int height = pixels.getHeight();
+		int[] row = new int[width];
+		int color = pixels.getPixel(0, 0);
+		for (int y = 0; y < height; y++) {
+			pixels.getPixels(row, 0, width, 0, y, width, 1);
+			for (int x = 0; x < width; x++) {
+				if (row[x] != color) {
+					return null;
+				}
+			}
+		}
+		return color;
+	}
+
+	// Returns the encoding statistics of a format, creating them if necessary
+	private TileFormat.Stats getFormatStats(TileFormat format) {
+		String name = format.toString();
+		TileFormat.Stats stats = formatStats.get(name);
+		if (stats == null) {
+			TileFormat.Stats created = new TileFormat.Stats();
+			stats = formatStats.putIfAbsent(name, created);
+			if (stats == null) {
+				stats = created;
+			}
+		}
+		return stats;
+	}
+
+	// Takes the renderers of the map files needed by the given tiles. They
+	// must be given back with renderers.release(). Background renders wait
+	// until no other render is waiting for a renderer
+	private MapRegistry.Renderers acquireRenderers(List<Tile> tiles,
+			boolean background) throws IOException {
+		try {
+			synchronized (renderWaitLock) {
+				if (background) {
+					while (waitingRenders > 0) {
+						renderWaitLock.wait();
+					}
+				} else {
+					waitingRenders++;
+				}
+			}
+
+			try {
+				// The registry may be replaced (new map files, new renderer
+				// count) while we are waiting, so retry with the current one
+				MapRegistry.Renderers renderers = null;
+				while (renderers == null) {
+					renderers = this.mapRegistry.acquire(tiles);
+				}
+				return renderers;
+			} finally {
+				if (!background) {
+					synchronized (renderWaitLock) {
+						waitingRenders--;
+						renderWaitLock.notifyAll();
+					}
+				}
 			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while waiting for a renderer");
 		}
 	}
-	
-	private void copyFileInAssets(String filename) throws IOException {
-		AssetManager assetManager = context.getAssets();
 
-		InputStream in = null;
-		OutputStream out = null;
-		in = assetManager.open(filename);
-		File f = new File(this.context.getFilesDir() + "/" + filename);
-		out = new FileOutputStream(f);
+	// Checks if any render other than the metatile siblings and the seeded
+	// tiles is waiting for a renderer
+	private boolean hasWaitingRenders() {
+		synchronized (renderWaitLock) {
+			return waitingRenders > 0;
+		}
+	}
 
-		copyFile(in, out);
+	// Renders a tile with the given renderers. It fails if the render theme
+	// or the map files have changed since the tile was requested, so the
+	// tile is not stored in the partition of the previous ones
+	private TileBitmap renderTile(MapRegistry.Renderers renderers, TileKey key)
+			throws IOException {
+		RenderThemeCache.Theme theme = renderTheme;
+		if (!key.partition.endsWith(getRenderSuffix(theme,
+				renderers.getRegistry()))) {
+			throw new IOException(
+					"The render theme or the map changed while rendering tile, x: "
+							+ key.x + ", y: " + key.y + ", zoom: " + key.zoom);
+		}
 
-		in.close();
-		in = null;
-		out.flush();
-		out.close();
-		out = null;
+		return renderers.render(new Tile(key.x, key.y, key.zoom), theme,
+				displayModel);
 	}
 
 	/**
@@ -552,7 +1803,7 @@ public class MapsforgeCache {
 		if (cacheName != null && !cacheName.equals("")) {
 			if (cacheDir != null && cacheDir.exists()
 					&& !cacheName.equals(this.cacheName)) {
-				deleteDirectory(cacheDir, System.currentTimeMillis());
+				deleteCache();
 			}
 			this.cacheName = cacheName;
 		}
@@ -588,6 +1839,23 @@ public class MapsforgeCache {
 		this.cleanOnDestroy = cleanOnDestroy;
 	}
 
+	/**
+	 * Enables or disables the deduplication of tiles. When enabled, tiles with
+	 * the same image (e.g. sea, forests or empty land) are stored once, as a
+	 * file named after the hash of their content, and every tile of the index
+	 * points to it; the file is deleted when the last tile that uses it is
+	 * removed. It only applies to the tiles stored afterwards, and only with
+	 * the <code>directory</code> storage, since the paths of the tiles of an
+	 * MBTiles file are already data URLs.
+	 * 
+	 * @param deduplication
+	 *            True to store identical tiles once, false to store every tile
+	 *            in its own file
+	 */
+	public void setDeduplication(boolean deduplication) {
+		this.deduplication = deduplication;
+	}
+
 	/**
 	 * Sets up the application context.
 	 * 
@@ -616,7 +1884,7 @@ public class MapsforgeCache {
 
 		if (this.externalCache != previousCache && cacheDir != null
 				&& cacheDir.exists()) {
-			deleteDirectory(cacheDir, System.currentTimeMillis());
+			deleteCache();
 			createCacheDirectory();
 		}
 	}
@@ -653,30 +1921,56 @@ public class MapsforgeCache {
 	 */
 	public void setMapFilePath(String mapFilePath)
 			throws IllegalArgumentException, FileNotFoundException {
-		if (mapFilePath != null
-				&& mapFilePath.substring(mapFilePath.length() - 4,
-						mapFilePath.length()).equals(".map")) {
-			this.mapFilePath = mapFilePath;
+		setMapFilePaths(Collections.singletonList(mapFilePath));
+	}
 
-			mapFile = new File(mapFilePath);
-			if (mapFile == null || !mapFile.exists()) {
-				throw new FileNotFoundException("Map file not found.");
-			}
+	/**
+	 * Sets the map files that will be used for rendering, for maps split in
+	 * several files (e.g. one per country). Every tile is rendered with a
+	 * single file, the first one whose bounding box contains the center of
+	 * the tile. The files that were already in use are not opened again.
+	 * 
+	 * @param mapFilePaths
+	 *            Absolute file paths to the map files. Where they overlap, the
+	 *            first ones render the tiles
+	 * @throws FileNotFoundException
+	 *             If one of the map files doesn't exist
+	 * @throws IllegalArgumentException
+	 *             If there are no map files, or one of them is not valid
+	 */
+	public void setMapFilePaths(List<String> mapFilePaths)
+			throws IllegalArgumentException, FileNotFoundException {
+		if (mapFilePaths == null || mapFilePaths.isEmpty()) {
+			throw new IllegalArgumentException("No map files");
+		}
 
-			if (this.mapDatabase.hasOpenFile()) {
-				this.mapDatabase.closeFile();
+		List<File> mapFiles = new ArrayList<File>(mapFilePaths.size());
+		for (String mapFilePath : mapFilePaths) {
+			if (mapFilePath == null
+					|| !mapFilePath.endsWith(".map")) {
+				throw new IllegalArgumentException(
+						"Incorrect map file path or incorrect file format (should be .map)");
 			}
-			mapDatabase.openFile(mapFile);
 
-			if (renderer != null) {
-				renderer.destroy();
+			File mapFile = new File(mapFilePath);
+			if (!mapFile.exists()) {
+				throw new FileNotFoundException("Map file not found: "
+						+ mapFilePath);
 			}
+			mapFiles.add(mapFile);
+		}
 
-			renderer = new DatabaseRenderer(this.mapDatabase,
-					this.graphicFactory);
-		} else {
-			throw new IllegalArgumentException(
-					"Incorrect map file path or incorrect file format (should be .map)");
+		synchronized (this) {
+			MapRegistry previousRegistry = mapRegistry;
+			mapRegistry = new MapRegistry(mapFiles, this.graphicFactory,
+					this.rendererCount, previousRegistry);
+			this.mapFilePaths = new ArrayList<String>(mapFilePaths);
+
+			updatePartition();
+
+			if (previousRegistry != null) {
+				previousRegistry.destroy(mapRegistry);
+			}
 		}
 	}
 
@@ -714,6 +2008,64 @@ public class MapsforgeCache {
 		this.maxCacheSize = maxCacheSize;
 	}
 
+	/**
+	 * Sets up the size of the in-memory tier that keeps the tiles served
+	 * recently, so they can be returned without accessing the storage. The
+	 * tiles in memory are discarded when the size changes.
+	 * 
+	 * @param memoryCacheSize
+	 *            Size of the memory cache(in MB), or 0 to disable it
+	 */
+	public void setMemoryCacheSize(int memoryCacheSize) {
+		this.memoryCacheSize = (memoryCacheSize < 0) ? 0 : memoryCacheSize;
+		this.memoryCache = new TileMemoryCache(
+				this.memoryCacheSize * 1024 * 1024);
+	}
+
+	/**
+	 * Enables the metatile mode, where a missing tile is rendered together
+	 * with the rest of the <code>metatileSize</code> x
+	 * <code>metatileSize</code> block of tiles that contains it. The requested
+	 * tile is rendered first, on the calling thread, and the rest of the block
+	 * is rendered in the background by a single renderer, reusing the map data
+	 * and labels it has read, so the tiles around are already in the cache
+	 * when the map is panned. The background renders give their renderer back
+	 * whenever a requested tile is waiting for one. It only applies when the
+	 * cache is enabled.
+	 * 
+	 * @param metatileSize
+	 *            Side of the metatiles (in tiles): 1 (disabled), 2, 4 or 8
+	 * @throws IllegalArgumentException
+	 *             If the size is not one of the above
+	 */
+	public synchronized void setMetatileSize(int metatileSize)
+			throws IllegalArgumentException {
+		if (metatileSize != 1 && metatileSize != 2 && metatileSize != 4
+				&& metatileSize != 8) {
+			throw new IllegalArgumentException("Incorrect metatile size ("
+					+ metatileSize + "), should be 1, 2, 4 or 8");
+		}
+
+		if (metatileSize > 1 && metatileExecutor == null) {
+			// No more blocks than renderers are rendered at the same time,
+			// the rest wait in the queue, and they yield to the requested
+			// tiles
+			metatileExecutor = new ThreadPoolExecutor(rendererCount,
+					rendererCount, 30, TimeUnit.SECONDS,
+					new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							Thread thread = new Thread(r, "mapsforge-metatile");
+							thread.setDaemon(true);
+							thread.setPriority(Thread.MIN_PRIORITY);
+							return thread;
+						}
+					});
+			metatileExecutor.allowCoreThreadTimeOut(true);
+		}
+		this.metatileSize = metatileSize;
+	}
+
 	/**
 	 * Sets up the overdraw factor that will be used for rendering the tiles. By
 	 * default its value is 1.2f.
@@ -730,7 +2082,8 @@ public class MapsforgeCache {
 	 * the theme will not be changed.
 	 * 
 	 * @param renderThemePath
-	 *            Absolute path to the theme file
+	 *            Absolute path to the theme file, or name of a theme bundled
+	 *            with the plugin (e.g. {@code driving.xml})
 	 * @throws FileNotFoundException
 	 */
 	public void setRenderTheme(String renderThemePath)
@@ -739,15 +2092,17 @@ public class MapsforgeCache {
 				&& renderThemePath.substring(renderThemePath.length() - 4,
 						renderThemePath.length()).equals(".xml")) {
 
-			if(!renderThemePath.contains("/")) 
-				renderThemePath = this.context.getFilesDir() + "/renderthemes/"+renderThemePath;
-			
-			File newTheme = new File(renderThemePath);
-			if (newTheme.exists()) {
-				this.renderTheme = new ExternalRenderTheme(newTheme);
-			} else {
+			// Bundled themes are read from the assets
+			RenderThemeCache.Theme theme;
+			try {
+				theme = ThemeAssets.load(this.context, renderThemePath);
+			} catch (FileNotFoundException e) {
 				throw new FileNotFoundException("Render theme doesn't exist: "+ renderThemePath);
+			} catch (IOException e) {
+				throw new IllegalArgumentException(e.getMessage());
 			}
+			this.renderTheme = theme;
+			updatePartition();
 
 		} else {
 			throw new IllegalArgumentException(
@@ -755,6 +2110,56 @@ public class MapsforgeCache {
 		}
 	}
 
+	/**
+	 * Sets the number of renderers used to generate the tiles that are not in
+	 * the cache. Each renderer opens its own copy of the map file. By default
+	 * there is one renderer per available processor.
+	 * 
+	 * @param rendererCount
+	 *            Number of tiles that can be rendered at the same time, or 0
+	 *            to use the number of available processors
+	 * @throws IllegalArgumentException
+	 *             If the map file can not be opened again
+	 */
+	public void setRendererCount(int rendererCount)
+			throws IllegalArgumentException {
+		if (rendererCount <= 0) {
+			this.rendererCount = Runtime.getRuntime().availableProcessors();
+		} else {
+			this.rendererCount = rendererCount;
+		}
+
+		if (requestScheduler == null) {
+			requestScheduler = new TileRequestScheduler(this.rendererCount);
+		} else {
+			requestScheduler.setThreads(this.rendererCount);
+		}
+		synchronized (seedingLock) {
+			seedingLock.notifyAll();
+		}
+
+		synchronized (this) {
+			if (metatileExecutor != null) {
+				if (this.rendererCount > metatileExecutor.getMaximumPoolSize()) {
+					metatileExecutor.setMaximumPoolSize(this.rendererCount);
+					metatileExecutor.setCorePoolSize(this.rendererCount);
+				} else {
+					metatileExecutor.setCorePoolSize(this.rendererCount);
+					metatileExecutor.setMaximumPoolSize(this.rendererCount);
+				}
+			}
+
+			MapRegistry previousRegistry = mapRegistry;
+			if (previousRegistry != null
+					&& previousRegistry.getSize() != this.rendererCount) {
+				mapRegistry = new MapRegistry(previousRegistry.getMapFiles(),
+						this.graphicFactory, this.rendererCount,
+						previousRegistry);
+				previousRegistry.destroy(mapRegistry);
+			}
+		}
+	}
+
 	/**
 	 * Changes the screen ratio used when the images are generated. By default
 	 * its value is 1f.
@@ -766,6 +2171,148 @@ public class MapsforgeCache {
 		this.screenRatio = screenRatio;
 	}
 
+	/**
+	 * Sets how the tiles are stored. With {@link #STORAGE_DIRECTORY} every
+	 * tile is an image file, and with {@link #STORAGE_MBTILES} all the tiles are
+	 * kept in a single MBTiles file, which saves file system blocks and makes
+	 * cleanings faster. Changing it will destroy the previous cache.
+	 * 
+	 * @param storageType
+	 *            {@link #STORAGE_DIRECTORY} or {@link #STORAGE_MBTILES}
+	 * @throws IllegalArgumentException
+	 *             If the storage type is not one of the above
+	 */
+	public void setStorageType(String storageType)
+			throws IllegalArgumentException {
+		if (!STORAGE_DIRECTORY.equals(storageType)
+				&& !STORAGE_MBTILES.equals(storageType)) {
+			throw new IllegalArgumentException("Unknown storage type ("
+					+ storageType + "), should be " + STORAGE_DIRECTORY
+					+ " or " + STORAGE_MBTILES);
+		}
+
+		if (storageType.equals(this.storageType)) {
+			return;
+		}
+
+		this.storageType = storageType;
+		if (cacheDir != null && cacheDir.exists()) {
+			deleteCache();
+			createCacheDirectory();
+		}
+	}
+
+	/**
+	 * Sets the image format of the tiles. Every format (and quality) has its
+	 * own partition in the cache, so the tiles already stored with another
+	 * format are kept, and they are used again when that format is selected.
+	 * The PNG compression level is not part of the partition, since it does
+	 * not change the image, only its size and the encoding time.
+	 * <p>
+	 * JPEG and lossy WebP tiles are smaller and faster to store, at the cost
+	 * of some artifacts. JPEG has no transparency.
+	 * 
+	 * @param format
+	 *            {@link #FORMAT_PNG}, {@link #FORMAT_JPEG},
+	 *            {@link #FORMAT_WEBP} or {@link #FORMAT_WEBP_LOSSLESS}
+	 * @param quality
+	 *            For PNG, the compression level (0-9, or -1 for the default
+	 *            encoder). For JPEG and WebP, the quality (0-100). Ignored by
+	 *            lossless WebP
+	 * @throws IllegalArgumentException
+	 *             If the format or the quality are not valid
+	 */
+	public synchronized void setTileFormat(String format, int quality)
+			throws IllegalArgumentException {
+		TileFormat newFormat = new TileFormat(format, quality);
+		TileFormat previousFormat = this.tileFormat;
+		this.tileFormat = newFormat;
+		updatePartition();
+
+		if (previousFormat == null
+				|| !previousFormat.getExtension().equals(
+						newFormat.getExtension())) {
+			if (tmpStore != null) {
+				tmpStore.clear();
+			}
+			tmpStore = new DirectoryTileStore(tmpDir, newFormat.getExtension());
+		}
+	}
+
+	/**
+	 * Starts a HTTP server on the loopback interface that serves the tiles
+	 * with URLs like {@code http://127.0.0.1:port/{z}/{x}/{y}.png}, with the
+	 * extension of the tile format, so they can be loaded as any other online
+	 * tile layer, without calling the plugin for every tile. If the server is
+	 * already running it is restarted only if a different port is requested.
+	 * 
+	 * @param port
+	 *            Port to listen on, or 0 to use any free port
+	 * @return The URL template of the server
+	 * @throws IOException
+	 *             If the port can not be opened
+	 */
+	public synchronized String startTileServer(int port) throws IOException {
+		if (tileServer != null) {
+			if (port == 0 || port == tileServer.getPort()) {
+				return tileServer.getUrlTemplate();
+			}
+			stopTileServer();
+		}
+
+		tileServer = new TileServer(new TileServer.TileSource() {
+			@Override
+			public byte[] getTile(byte zoom, long x, long y)
+					throws IOException {
+				return getTileData(x, y, zoom);
+			}
+
+			@Override
+			public String getContentType() {
+				return tileFormat.getMimeType();
+			}
+
+			@Override
+			public String getExtension() {
+				return tileFormat.getExtension();
+			}
+		}, port);
+		updateMBTilesServerUrl();
+		return tileServer.getUrlTemplate();
+	}
+
+	/**
+	 * Stops the local tile server, if it is running.
+	 */
+	public synchronized void stopTileServer() {
+		if (tileServer != null) {
+			tileServer.stop();
+			tileServer = null;
+			updateMBTilesServerUrl();
+		}
+	}
+
+	/**
+	 * Sets the area that is being shown, so the tiles requested closest to its
+	 * center are served first, and the ones outside of it go after all the
+	 * visible ones. Queued tiles of another zoom level are dropped.
+	 * 
+	 * @param minLat
+	 *            South bound
+	 * @param minLng
+	 *            West bound
+	 * @param maxLat
+	 *            North bound
+	 * @param maxLng
+	 *            East bound
+	 * @param zoom
+	 *            Zoom level shown
+	 */
+	public void setViewport(double minLat, double minLng, double maxLat,
+			double maxLng, byte zoom) {
+		requestScheduler.setViewport(minLat, minLng, maxLat, maxLng, zoom);
+	}
+
 	/**
 	 * Sets the size of the images generated. By default its value is 256.
 	 * 
@@ -2,11 +2,17 @@ package com.suarez.cordova.mapsforge;
 
 import java.io.File;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -23,14 +29,11 @@ import org.mapsforge.map.layer.cache.TileCache;
 import org.mapsforge.map.layer.download.TileDownloadLayer;
 import org.mapsforge.map.layer.download.tilesource.OnlineTileSource;
 import org.mapsforge.map.layer.overlay.Marker;
-import org.mapsforge.map.layer.overlay.Polyline;
 import org.mapsforge.map.layer.renderer.TileRendererLayer;
 import org.mapsforge.map.model.MapViewPosition;
-import org.mapsforge.map.rendertheme.ExternalRenderTheme;
 import org.mapsforge.map.rendertheme.XmlRenderTheme;
 
 import android.app.Activity;
-import android.content.res.AssetManager;
 import android.graphics.drawable.Drawable;
 import android.util.Log;
 import android.util.SparseArray;
@@ -53,6 +56,9 @@ public class MapsforgeNative {
 	 */
 	public static MapsforgeNative INSTANCE;
 
+	// Color of the circles of the clusters of markers
+	private static final int CLUSTER_COLOR = 0xcc1e64c8;
+
 	/**
 	 * Creates a new instance of <code>MapsforgeNative</code>.
 	 * 
@@ -103,6 +109,16 @@ public class MapsforgeNative {
 	// Array with the layers(markers and polylines added by the user)
 	private SparseArray<Layer> layersOnMap;
 	private int layerCounter;
+	// Bitmaps of the markers, by drawable id, shared by all the markers that
+	// use the same drawable
+	private SparseArray<Bitmap> markerBitmaps;
+	// Layer of the clustered markers, created with the first of them
+	private ClusterLayer clusterLayer;
+	// Keys of the layers (and clustered markers) of every group, and group
+	// of every key
+	private Map<String, Set<Integer>> layerGroups;
+	private SparseArray<String> layerGroupOf;
+	private Set<String> hiddenLayerGroups;
 
 	/**
 	 * Creates a new instance of mapsforge with the specified map and layout
@@ -129,9 +145,9 @@ public class MapsforgeNative {
 		setMapFilePath(mapFilePath);
 		setCacheName("mapcache");
 
-		prepareMapThemes();
+		ThemeAssets.extract(this.context);
 
-		setRenderThemePath(this.context.getFilesDir() + "/renderthemes/assets.xml");
+		setRenderThemePath(ThemeAssets.DEFAULT_THEME);
 
 		destroyCache = true;
 
@@ -142,6 +158,10 @@ public class MapsforgeNative {
 
 		layersOnMap = new SparseArray<Layer>();
 		layerCounter = 0;
+		markerBitmaps = new SparseArray<Bitmap>();
+		layerGroups = new HashMap<String, Set<Integer>>();
+		layerGroupOf = new SparseArray<String>();
+		hiddenLayerGroups = new HashSet<String>();
 
 		initializeMap();
 	}
@@ -162,10 +182,7 @@ public class MapsforgeNative {
 	 * @return The identifier of the marker that has been created
 	 */
 	public int addMarker(int drawableId, double lat, double lng) {
-		Drawable drawable = context.getResources().getDrawable(drawableId);
-		Bitmap bitmap = AndroidGraphicFactory.convertToBitmap(drawable);
-		Marker marker = new Marker(new LatLong(lat, lng), bitmap, 0,
-				-bitmap.getHeight() / 2);
+		Marker marker = createMarker(getMarkerBitmap(drawableId), lat, lng);
 
 		layers.add(marker);
 
@@ -173,13 +190,132 @@ public class MapsforgeNative {
 		return layerCounter++;
 	}
 
+	/**
+	 * Adds several groups of markers to the MapView at once, redrawing it only
+	 * once. All the markers of a group use the same image, which is loaded
+	 * only once and shared by them. The markers get consecutive identifiers,
+	 * in the order of the groups and of the points of every group, starting
+	 * from the returned one.
+	 * 
+	 * @see #deleteLayer(int)
+	 * 
+	 * @param drawableIds
+	 *            Id of the image of every group
+	 * @param points
+	 *            Coordinates of every group, with the latitudes in the odd
+	 *            positions and the longitudes in the even positions
+	 * @return The identifier of the first marker, or -1 if there were no
+	 *         points
+	 * @throws IllegalArgumentException
+	 *             If a coordinate is not valid, in which case no marker is
+	 *             added
+	 */
+	public int addMarkers(int[] drawableIds, double[][] points)
+			throws IllegalArgumentException {
+		List<Layer> markers = new ArrayList<Layer>();
+		try {
+			for (int i = 0; i < drawableIds.length; i++) {
+				Bitmap bitmap = getMarkerBitmap(drawableIds[i]);
+				double[] groupPoints = points[i];
+				for (int j = 0; j + 1 < groupPoints.length; j += 2) {
+					markers.add(createMarker(bitmap, groupPoints[j],
+							groupPoints[j + 1]));
+				}
+			}
+		} catch (IllegalArgumentException e) {
+			for (Layer marker : markers) {
+				marker.onDestroy();
+			}
+			throw e;
+		}
+		if (markers.isEmpty()) {
+			return -1;
+		}
+
+		layers.addAll(markers);
+
+		int firstKey = layerCounter;
+		for (Layer marker : markers) {
+			layersOnMap.append(layerCounter++, marker);
+		}
+		return firstKey;
+	}
+
+	/**
+	 * Adds several groups of markers to the MapView, grouped in clusters: at
+	 * every zoom level, the markers that are close to each other are drawn as
+	 * a single circle with their number, so the map is drawn as fast with
+	 * thousands of markers as with a few of them. The clusters are computed in
+	 * the background, and only the clusters that contain the added or deleted
+	 * markers are computed again. Every marker has its own identifier, which
+	 * is deleted through <code>deleteLayer</code> like any other layer; they
+	 * are consecutive, as in {@link #addMarkers(int[], double[][])}.
+	 * 
+	 * @see #deleteLayer(int)
+	 * 
+	 * @param drawableIds
+	 *            Id of the image of every group, drawn for the markers that
+	 *            are not in a cluster
+	 * @param points
+	 *            Coordinates of every group, with the latitudes in the odd
+	 *            positions and the longitudes in the even positions
+	 * @return The identifier of the first marker, or -1 if there were no
+	 *         points
+	 * @throws IllegalArgumentException
+	 *             If a coordinate is not valid, in which case no marker is
+	 *             added
+	 */
+	public int addClusteredMarkers(int[] drawableIds, double[][] points)
+			throws IllegalArgumentException {
+		int count = 0;
+		for (double[] groupPoints : points) {
+			count += groupPoints.length / 2;
+		}
+		if (count == 0) {
+			return -1;
+		}
+
+		int[] keys = new int[count];
+		double[] lats = new double[count];
+		double[] lngs = new double[count];
+		Bitmap[] bitmaps = new Bitmap[count];
+		int n = 0;
+		for (int i = 0; i < drawableIds.length; i++) {
+			Bitmap bitmap = getMarkerBitmap(drawableIds[i]);
+			double[] groupPoints = points[i];
+			for (int j = 0; j + 1 < groupPoints.length; j += 2) {
+				// Validates the coordinates before adding any marker
+				LatLong latLong = new LatLong(groupPoints[j],
+						groupPoints[j + 1]);
+				keys[n] = layerCounter + n;
+				lats[n] = latLong.latitude;
+				lngs[n] = latLong.longitude;
+				bitmaps[n] = bitmap;
+				n++;
+			}
+		}
+
+		if (clusterLayer == null) {
+			clusterLayer = new ClusterLayer(graphicFactory, CLUSTER_COLOR);
+			layers.add(clusterLayer);
+		}
+		clusterLayer.add(keys, lats, lngs, bitmaps);
+
+		int firstKey = layerCounter;
+		layerCounter += count;
+		return firstKey;
+	}
+
 	/**
 	 * Adds a new polyline to the MapView using the coordinates passed as
 	 * <code>points</code>. That array uses the values in odd positions for the
 	 * latitude, and the even positions for the longitude. The returned value is
-	 * the identifier needed to delete the polyline from the view.
+	 * the identifier needed to delete the polyline from the view. Long lines
+	 * are drawn simplified to the detail that can be seen at every zoom level,
+	 * and only in the visible area.
 	 * 
 	 * @see #deleteLayer(int)
+	 * @see SimplifiedPolyline
 	 * @param color
 	 *            Color for the polyline
 	 * @param strokeWidth
@@ -190,21 +326,44 @@ public class MapsforgeNative {
 	 * @throws JSONException
 	 *             If the arguments passed as points can not be retrieved as
 	 *             doubles
+	 * @throws IllegalArgumentException
+	 *             If a coordinate is not valid
 	 */
 	public int addPolyline(int color, int strokeWidth, JSONArray points)
-			throws JSONException {
+			throws JSONException, IllegalArgumentException {
+		double[] coordinates = new double[points.length()];
+		for (int i = 0; i < coordinates.length; i++) {
+			coordinates[i] = points.getDouble(i);
+		}
+		return addPolyline(color, strokeWidth, coordinates);
+	}
+
+	/**
+	 * Adds a new polyline to the MapView, like
+	 * {@link #addPolyline(int, int, JSONArray)}, from an array of coordinates
+	 * that has already been decoded.
+	 * 
+	 * @see #deleteLayer(int)
+	 * @param color
+	 *            Color for the polyline
+	 * @param strokeWidth
+	 *            Width
+	 * @param points
+	 *            Coordinates, with the latitudes in the odd positions and the
+	 *            longitudes in the even positions
+	 * @return The identifier for delete the polyline in the future
+	 * @throws IllegalArgumentException
+	 *             If a coordinate is not valid
+	 */
+	public int addPolyline(int color, int strokeWidth, double[] points)
+			throws IllegalArgumentException {
 		Paint paint = graphicFactory.createPaint();
 		paint.setColor(color);
 		paint.setStrokeWidth(strokeWidth);
 		paint.setStyle(Style.STROKE);
 
-		Polyline polyline = new Polyline(paint, graphicFactory);
-		List<LatLong> latlongs = polyline.getLatLongs();
-
-		for (int i = 0; i < points.length(); i += 2) {
-			latlongs.add(new LatLong(points.getDouble(i), points
-					.getDouble(i + 1)));
-		}
+		SimplifiedPolyline polyline = new SimplifiedPolyline(paint,
+				graphicFactory, points);
 
 		layers.add(polyline);
 
@@ -212,25 +371,149 @@ public class MapsforgeNative {
 		return layerCounter++;
 	}
 
-	// Copy an inputStream in an outputStream
-	private void copyFile(InputStream in, OutputStream out) throws IOException {
-		byte[] buffer = new byte[1024];
-		int read;
-		while ((read = in.read(buffer)) != -1) {
-			out.write(buffer, 0, read);
+	/**
+	 * Appends points to the end of a polyline, e.g. to follow a live track,
+	 * without sending again the points it already has. The polyline is
+	 * redrawn once for all the points.
+	 * 
+	 * @see #addPolyline(int, int, JSONArray)
+	 * @param key
+	 *            Identifier of the polyline
+	 * @param points
+	 *            Coordinates of the new points, with the latitudes in the odd
+	 *            positions and the longitudes in the even positions
+	 * @throws IllegalArgumentException
+	 *             If there is no polyline with that identifier, or a coordinate
+	 *             is not valid, in which case no point is appended
+	 */
+	public void appendToPolyline(int key, double[] points)
+			throws IllegalArgumentException {
+		Layer layer = layersOnMap.get(key, null);
+		if (!(layer instanceof SimplifiedPolyline)) {
+			throw new IllegalArgumentException("There is no polyline with key "
+					+ key);
 		}
+		((SimplifiedPolyline) layer).append(points);
+	}
+
+	/**
+	 * Adds layers (markers, clustered markers or polylines) to a named group,
+	 * so all of them can be shown, hidden, deleted or moved over the other
+	 * layers at once. A layer belongs to one group at most, so the layers
+	 * that were in another group are moved to this one. If the group is
+	 * hidden, the layers are hidden as well.
+	 * 
+	 * @see #setLayerGroupVisible(String, boolean)
+	 * @see #clearLayerGroup(String)
+	 * @see #orderLayerGroups(String[])
+	 * @param group
+	 *            Name of the group, which is created if it does not exist
+	 * @param keys
+	 *            Identifiers of the layers. The ones that do not exist are
+	 *            ignored
+	 */
+	public void addToLayerGroup(String group, int[] keys) {
+		Set<Integer> members = layerGroups.get(group);
+		if (members == null) {
+			members = new LinkedHashSet<Integer>();
+			layerGroups.put(group, members);
+		}
+		boolean visible = !hiddenLayerGroups.contains(group);
+
+		List<Integer> changedVisibility = new ArrayList<Integer>();
+		for (int key : keys) {
+			if (layersOnMap.get(key, null) == null
+					&& (clusterLayer == null || !clusterLayer.contains(key))) {
+				continue;
+			}
+
+			String previous = layerGroupOf.get(key);
+			if (previous != null) {
+				layerGroups.get(previous).remove(key);
+			}
+			boolean wasVisible = previous == null
+					|| !hiddenLayerGroups.contains(previous);
+
+			members.add(key);
+			layerGroupOf.put(key, group);
+			if (wasVisible != visible) {
+				changedVisibility.add(key);
+			}
+		}
+
+		if (!changedVisibility.isEmpty()) {
+			setVisible(changedVisibility, visible);
+		}
+	}
+
+	/**
+	 * Deletes all the layers of a group, and the group itself, redrawing the
+	 * map once.
+	 * 
+	 * @param group
+	 *            Name of the group
+	 * @throws IllegalArgumentException
+	 *             If there is no group with that name
+	 */
+	public void clearLayerGroup(String group) throws IllegalArgumentException {
+		Set<Integer> members = getLayerGroup(group);
+
+		Set<Layer> removed = new HashSet<Layer>();
+		for (Integer key : members) {
+			Layer layer = layersOnMap.get(key, null);
+			if (layer != null) {
+				removed.add(layer);
+			}
+		}
+		if (!removed.isEmpty()) {
+			List<Layer> overlays = removeOverlays();
+			overlays.removeAll(removed);
+			layers.addAll(overlays);
+		}
+
+		List<Integer> clustered = new ArrayList<Integer>();
+		for (Integer key : members) {
+			Layer layer = layersOnMap.get(key, null);
+			if (layer != null) {
+				// Gives back the shared bitmap of the markers
+				layer.onDestroy();
+				layersOnMap.delete(key);
+			} else {
+				clustered.add(key);
+			}
+			layerGroupOf.delete(key);
+		}
+		// The clustered markers are removed at once, with a single redraw
+		if (clusterLayer != null && !clustered.isEmpty()) {
+			clusterLayer.remove(clustered);
+		}
+		layerGroups.remove(group);
+		hiddenLayerGroups.remove(group);
 	}
 
 	/**
 	 * Deletes an element that has been added to the layer manager such markers
-	 * and polylines.
+	 * (clustered or not) and polylines.
 	 * 
 	 * @param key
 	 *            The identifier for the layer to delete
 	 */
 	public void deleteLayer(int key) {
-		layers.remove(layersOnMap.get(key, null));
+		Layer layer = layersOnMap.get(key, null);
+		if (layer != null) {
+			layers.remove(layer);
+			// Gives back the shared bitmap of the markers
+			layer.onDestroy();
+		} else if (clusterLayer != null) {
+			clusterLayer.remove(key);
+		}
 		layersOnMap.delete(key);
+
+		String group = layerGroupOf.get(key);
+		if (group != null) {
+			layerGroups.get(group).remove(key);
+			layerGroupOf.delete(key);
+		}
 	}
 
 	/**
@@ -303,6 +586,80 @@ public class MapsforgeNative {
 		mapView.setVisibility(MapView.GONE);
 	}
 
+	// Creates a marker whose image is the given shared bitmap, which is
+	// given back when the marker is destroyed
+	private Marker createMarker(Bitmap bitmap, double lat, double lng) {
+		Marker marker = new Marker(new LatLong(lat, lng), bitmap, 0,
+				-bitmap.getHeight() / 2);
+		bitmap.incrementRefCount();
+		return marker;
+	}
+
+	// Returns the bitmap of a drawable, converting it only the first time
+	private Bitmap getMarkerBitmap(int drawableId) {
+		Bitmap bitmap = markerBitmaps.get(drawableId);
+		if (bitmap == null) {
+			Drawable drawable = context.getResources().getDrawable(drawableId);
+			bitmap = AndroidGraphicFactory.convertToBitmap(drawable);
+			markerBitmaps.put(drawableId, bitmap);
+		}
+		return bitmap;
+	}
+
+	private Set<Integer> getLayerGroup(String group)
+			throws IllegalArgumentException {
+		Set<Integer> members = layerGroups.get(group);
+		if (members == null) {
+			throw new IllegalArgumentException(
+					"There is no layer group named " + group);
+		}
+		return members;
+	}
+
+	// Shows or hides layers and clustered markers, redrawing the map once
+	private void setVisible(Collection<Integer> keys, boolean visible) {
+		List<Integer> clustered = new ArrayList<Integer>();
+		for (Integer key : keys) {
+			Layer layer = layersOnMap.get(key, null);
+			if (layer != null) {
+				// Layer.setVisible does not redraw the map
+				layer.setVisible(visible);
+			} else {
+				clustered.add(key);
+			}
+		}
+
+		if (clusterLayer != null && !clustered.isEmpty()) {
+			clusterLayer.setVisible(clustered, visible);
+		}
+		if (clustered.size() < keys.size()) {
+			mapView.getLayerManager().redrawLayers();
+		}
+	}
+
+	// Takes out of the map every layer added by the user, starting from the
+	// top, so the list of layers never has to shift them, and returns them in
+	// drawing order. The redraws they request are merged by the layer
+	// manager, which only draws the map once they are added again
+	private List<Layer> removeOverlays() {
+		Map<Layer, Boolean> overlays = new IdentityHashMap<Layer, Boolean>();
+		for (int i = 0; i < layersOnMap.size(); i++) {
+			overlays.put(layersOnMap.valueAt(i), Boolean.TRUE);
+		}
+		if (clusterLayer != null) {
+			overlays.put(clusterLayer, Boolean.TRUE);
+		}
+
+		List<Layer> removed = new ArrayList<Layer>();
+		for (int i = layers.size() - 1; i >= 0; i--) {
+			if (overlays.containsKey(layers.get(i))) {
+				removed.add(layers.remove(i));
+			}
+		}
+		Collections.reverse(removed);
+		return removed;
+	}
+
 	// Initializes the view to the default values.
 	private void initializeMap() {
 		mapView = new MapView(context);
@@ -346,6 +703,16 @@ public class MapsforgeNative {
 		if (destroyCache) {
 			tileCache.destroy();
 		}
+
+		if (clusterLayer != null) {
+			layers.remove(clusterLayer);
+			clusterLayer.onDestroy();
+			clusterLayer = null;
+		}
+		for (int i = 0; i < markerBitmaps.size(); i++) {
+			markerBitmaps.valueAt(i).decrementRefCount();
+		}
+		markerBitmaps.clear();
 	}
 
 	/**
@@ -381,45 +748,75 @@ public class MapsforgeNative {
 		}
 	}
 
-	// Copies the render themes from the application to the internal memory
-	private void prepareMapThemes() throws IOException {
-		copyFileOrDirInAssets("renderthemes");
-	}
-	
-	private void copyFileOrDirInAssets(String path) throws IOException {
-		AssetManager assetManager = context.getAssets();
-		String assets[] = null;
-		assets = assetManager.list(path);
-		if (assets.length == 0) {
-			copyFileInAssets(path);
-		} else {
-			String fullPath = this.context.getFilesDir() + "/" + path;
+	/**
+	 * Draws the layers of the given groups over the rest of layers, in the
+	 * given order (the layers of the last group are drawn over all the other
+	 * ones), redrawing the map once. The layers keep their order inside their
+	 * group. The clustered markers are always drawn in the same layer, so
+	 * they are not moved.
+	 * 
+	 * @param groups
+	 *            Names of the groups
+	 * @throws IllegalArgumentException
+	 *             If there is no group with one of the names
+	 */
+	public void orderLayerGroups(String[] groups)
+			throws IllegalArgumentException {
+		Map<String, List<Layer>> ordered = new HashMap<String, List<Layer>>();
+		for (String group : groups) {
+			getLayerGroup(group);
+			ordered.put(group, new ArrayList<Layer>());
+		}
 
-			File dir = new File(fullPath);
-			if (!dir.exists())
-				dir.mkdir();
-			for (int i = 0; i < assets.length; ++i) {
-				copyFileOrDirInAssets(path + "/" + assets[i]);
+		Map<Layer, Integer> keys = new IdentityHashMap<Layer, Integer>();
+		for (int i = 0; i < layersOnMap.size(); i++) {
+			keys.put(layersOnMap.valueAt(i), layersOnMap.keyAt(i));
+		}
+
+		List<Layer> overlays = removeOverlays();
+		List<Layer> others = new ArrayList<Layer>(overlays.size());
+		for (Layer layer : overlays) {
+			Integer key = keys.get(layer);
+			List<Layer> groupLayers = (key == null) ? null : ordered
+					.get(layerGroupOf.get(key));
+			if (groupLayers == null) {
+				others.add(layer);
+			} else {
+				groupLayers.add(layer);
 			}
 		}
+		for (String group : groups) {
+			List<Layer> groupLayers = ordered.remove(group);
+			if (groupLayers != null) {
+				others.addAll(groupLayers);
+			}
+		}
+		layers.addAll(others);
 	}
-	
-	private void copyFileInAssets(String filename) throws IOException {
-		AssetManager assetManager = context.getAssets();
 
-		InputStream in = null;
-		OutputStream out = null;
-		in = assetManager.open(filename);
-		File f = new File(this.context.getFilesDir() + "/" + filename);
-		out = new FileOutputStream(f);
-
-		copyFile(in, out);
+	/**
+	 * Shows or hides all the layers of a group, redrawing the map once.
+	 * 
+	 * @param group
+	 *            Name of the group
+	 * @param visible
+	 *            True to show the layers, false to hide them
+	 * @throws IllegalArgumentException
+	 *             If there is no group with that name
+	 */
+	public void setLayerGroupVisible(String group, boolean visible)
+			throws IllegalArgumentException {
+		Set<Integer> members = getLayerGroup(group);
+		if (visible == !hiddenLayerGroups.contains(group)) {
+			return;
+		}
 
-		in.close();
-		in = null;
-		out.flush();
-		out.close();
-		out = null;
+		if (visible) {
+			hiddenLayerGroups.remove(group);
+		} else {
+			hiddenLayerGroups.add(group);
+		}
+		setVisible(members, visible);
 	}
 
 	/**
@@ -633,7 +1030,8 @@ public class MapsforgeNative {
 	 * is provided, or it is not valid, the default theme will be applied.
 	 * 
 	 * @param renderThemePath
-	 *            Absolute path to the theme file.
+	 *            Absolute path to the theme file, or name of a theme bundled
+	 *            with the plugin (e.g. {@code driving.xml}).
 	 * @throws IOException
 	 */
 	public void setRenderThemePath(String renderThemePath) throws IOException,
@@ -642,19 +1040,18 @@ public class MapsforgeNative {
 				&& renderThemePath.substring(renderThemePath.length() - 4,
 						renderThemePath.length()).equals(".xml")) {
 
-			if(!renderThemePath.contains("/")) 
-				renderThemePath = this.context.getFilesDir() + "/renderthemes/"+renderThemePath;
-			
-			File newTheme = new File(renderThemePath);
-			if (newTheme.exists()) {
-				this.renderThemePath = renderThemePath;
-				this.renderTheme = new ExternalRenderTheme(newTheme);
-			} else {
-				prepareMapThemes();
-				this.renderThemePath = this.context.getFilesDir()
-						+ "/renderthemes/assets.xml";
-				newTheme = new File(renderThemePath);
-				this.renderTheme = new ExternalRenderTheme(newTheme);
+			// Bundled themes are read from the assets
+			try {
+				this.renderTheme = ThemeAssets.load(this.context, renderThemePath);
+				this.renderThemePath = renderThemePath.contains("/") ? renderThemePath
+						: new File(ThemeAssets.getDirectory(this.context),
+								renderThemePath).getAbsolutePath();
+			} catch (FileNotFoundException e) {
+				this.renderTheme = ThemeAssets.load(this.context,
+						ThemeAssets.DEFAULT_THEME);
+				this.renderThemePath = new File(
+						ThemeAssets.getDirectory(this.context),
+						ThemeAssets.DEFAULT_THEME).getAbsolutePath();
 
 				Log.w(MapsforgePlugin.TAG,
 						"Render theme doesn't exist. Default theme applied.");
@@ -20,11 +20,16 @@ package com.suarez.cordova.mapsforge;
 
 import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.cordova.CallbackContext;
 import org.apache.cordova.CordovaPlugin;
+import org.apache.cordova.PluginResult;
 import org.json.JSONArray;
 import org.json.JSONException;
+import org.json.JSONObject;
 
 import android.app.Activity;
 import android.util.Log;
@@ -34,6 +39,8 @@ public class MapsforgePlugin extends CordovaPlugin {
 	 * Plugin's tag for log purposes
 	 */
 	static final String TAG = "mapsforge-cordova-plugin";
+	// Error for tile requests dropped after a change of viewport
+	private static final String DROPPED_MESSAGE = "Tile request dropped, it is out of the viewport";
 
 	@Override
 	public boolean execute(String action, JSONArray args,
@@ -83,21 +90,9 @@ public class MapsforgePlugin extends CordovaPlugin {
 				return true;
 			} else if ("native-marker".equals(action)) {
 				try {
-					Activity context = this.cordova.getActivity();
-
-					int markerId = context.getResources().getIdentifier(
-							args.getString(0), "drawable",
-							context.getPackageName());
-					if (markerId == 0) {
-						Log.i(MapsforgePlugin.TAG,
-								"Marker not found...using default marker: marker_green");
-						markerId = context.getResources().getIdentifier(
-								"marker_green", "drawable",
-								context.getPackageName());
-					}
-
 					int markerKey = MapsforgeNative.INSTANCE.addMarker(
-							markerId, args.getDouble(1), args.getDouble(2));
+							getMarkerId(args.getString(0)), args.getDouble(1),
+							args.getDouble(2));
 					callbackContext.success(markerKey);
 				} catch (JSONException je) {
 					callbackContext.error(je.getMessage());
@@ -106,21 +101,148 @@ public class MapsforgePlugin extends CordovaPlugin {
 				}
 
 				return true;
-			} else if ("native-polyline".equals(action)) {
+			} else if ("native-markers".equals(action)) {
+
+				try {
+					int[] markerIds = new int[args.length() / 2];
+					double[][] points = getMarkerGroups(args, markerIds);
+
+					int firstKey = MapsforgeNative.INSTANCE.addMarkers(
+							markerIds, points);
+					callbackContext.success(firstKey);
+				} catch (JSONException je) {
+					callbackContext.error(je.getMessage());
+				} catch (IllegalArgumentException e) {
+					callbackContext.error(e.getMessage());
+				} catch (Exception e) {
+					callbackContext.error(e.getMessage());
+				}
+
+				return true;
+			} else if ("native-cluster-markers".equals(action)) {
 
 				try {
-					JSONArray points = args.getJSONArray(2);
+					int[] markerIds = new int[args.length() / 2];
+					double[][] points = getMarkerGroups(args, markerIds);
+
+					int firstKey = MapsforgeNative.INSTANCE.addClusteredMarkers(
+							markerIds, points);
+					callbackContext.success(firstKey);
+				} catch (JSONException je) {
+					callbackContext.error(je.getMessage());
+				} catch (IllegalArgumentException e) {
+					callbackContext.error(e.getMessage());
+				} catch (Exception e) {
+					callbackContext.error(e.getMessage());
+				}
 
-					if (points.length() % 2 != 0)
-						throw new JSONException(
-								"Invalid array of coordinates. Length should be multiple of 2");
+				return true;
+			} else if ("native-polyline".equals(action)) {
 
+				try {
 					int polylineKey = MapsforgeNative.INSTANCE.addPolyline(
-							args.getInt(0), args.getInt(1), points);
+							args.getInt(0), args.getInt(1),
+							getCoordinates(args, 2));
 
 					callbackContext.success(polylineKey);
 				} catch (JSONException je) {
 					callbackContext.error(je.getMessage());
+				} catch (IllegalArgumentException e) {
+					callbackContext.error(e.getMessage());
+				} catch (Exception e) {
+					callbackContext.error(e.getMessage());
+				}
+
+				return true;
+			} else if ("native-polyline-append".equals(action)) {
+
+				try {
+					MapsforgeNative.INSTANCE.appendToPolyline(args.getInt(0),
+							getCoordinates(args, 1));
+					callbackContext.success();
+				} catch (JSONException je) {
+					callbackContext.error(je.getMessage());
+				} catch (IllegalArgumentException e) {
+					callbackContext.error(e.getMessage());
+				} catch (Exception e) {
+					callbackContext.error(e.getMessage());
+				}
+
+				return true;
+			} else if ("native-group-add".equals(action)) {
+
+				try {
+					int[] keys;
+					if (args.get(1) instanceof JSONArray) {
+						JSONArray keyArray = args.getJSONArray(1);
+						keys = new int[keyArray.length()];
+						for (int i = 0; i < keys.length; i++) {
+							keys[i] = keyArray.getInt(i);
+						}
+					} else {
+						// Block of consecutive keys, as returned by the bulk
+						// actions
+						int firstKey = args.getInt(1);
+						keys = new int[Math.max(args.getInt(2), 0)];
+						for (int i = 0; i < keys.length; i++) {
+							keys[i] = firstKey + i;
+						}
+					}
+
+					MapsforgeNative.INSTANCE.addToLayerGroup(args.getString(0),
+							keys);
+					callbackContext.success();
+				} catch (JSONException je) {
+					callbackContext.error(je.getMessage());
+				} catch (Exception e) {
+					callbackContext.error(e.getMessage());
+				}
+
+				return true;
+			} else if ("native-group-visible".equals(action)) {
+
+				try {
+					MapsforgeNative.INSTANCE.setLayerGroupVisible(
+							args.getString(0), args.getBoolean(1));
+					callbackContext.success();
+				} catch (JSONException je) {
+					callbackContext.error(je.getMessage());
+				} catch (IllegalArgumentException e) {
+					callbackContext.error(e.getMessage());
+				} catch (Exception e) {
+					callbackContext.error(e.getMessage());
+				}
+
+				return true;
+			} else if ("native-group-clear".equals(action)) {
+
+				try {
+					MapsforgeNative.INSTANCE.clearLayerGroup(args.getString(0));
+					callbackContext.success();
+				} catch (JSONException je) {
+					callbackContext.error(je.getMessage());
+				} catch (IllegalArgumentException e) {
+					callbackContext.error(e.getMessage());
+				} catch (Exception e) {
+					callbackContext.error(e.getMessage());
+				}
+
+				return true;
+			} else if ("native-group-order".equals(action)) {
+
+				try {
+					JSONArray groupArray = args.getJSONArray(0);
+					String[] groups = new String[groupArray.length()];
+					for (int i = 0; i < groups.length; i++) {
+						groups[i] = groupArray.getString(i);
+					}
+
+					MapsforgeNative.INSTANCE.orderLayerGroups(groups);
+					callbackContext.success();
+				} catch (JSONException je) {
+					callbackContext.error(je.getMessage());
+				} catch (IllegalArgumentException e) {
+					callbackContext.error(e.getMessage());
 				} catch (Exception e) {
 					callbackContext.error(e.getMessage());
 				}
@@ -344,15 +466,139 @@ public class MapsforgePlugin extends CordovaPlugin {
 					final long x = args.getLong(0);
 					final long y = args.getLong(1);
 					final byte z = Byte.parseByte(args.getString(2));
+					checkTile(x, y, z);
+					final CallbackContext callbacks = callbackContext;
+
+					MapsforgeCache.INSTANCE.requestTile(x, y, z,
+							new MapsforgeCache.TileCallback() {
+								public void onTile(String path) {
+									callbacks.success(path);
+								}
+
+								public void onError(Exception error) {
+									callbacks.error(error.getMessage());
+								}
+
+								public void onDropped() {
+									callbacks.error(DROPPED_MESSAGE);
+								}
+							});
+				} catch (JSONException je) {
+					callbackContext.error(je.getMessage());
+				} catch (NumberFormatException nfe) {
+					callbackContext.error(nfe.getMessage());
+				} catch (Exception e) {
+					callbackContext.error(e.getMessage());
+				}
+
+				return true;
+			} else if ("cache-get-tiles".equals(action)) {
+
+				try {
+					JSONArray tiles = args.getJSONArray(0);
+
+					if (tiles.length() == 0) {
+						callbackContext.success(new JSONArray());
+						return true;
+					}
+
+					// All the tiles are parsed before any of them is requested,
+					// so an invalid one does not leave the others pending
+					long[] xs = new long[tiles.length()];
+					long[] ys = new long[tiles.length()];
+					byte[] zs = new byte[tiles.length()];
+					for (int i = 0; i < tiles.length(); i++) {
+						JSONArray tile = tiles.getJSONArray(i);
+						xs[i] = tile.getLong(0);
+						ys[i] = tile.getLong(1);
+						zs[i] = Byte.parseByte(tile.getString(2));
+						checkTile(xs[i], ys[i], zs[i]);
+					}
+
+					final AtomicInteger pending = new AtomicInteger(
+							tiles.length());
+
+					for (int i = 0; i < tiles.length(); i++) {
+						final long x = xs[i];
+						final long y = ys[i];
+						final byte z = zs[i];
+						final CallbackContext callbacks = callbackContext;
+
+						MapsforgeCache.INSTANCE.requestTile(x, y, z,
+								new MapsforgeCache.TileCallback() {
+									public void onTile(String path) {
+										sendTileResult(callbacks, pending, x,
+												y, z, path, null);
+									}
+
+									public void onError(Exception error) {
+										sendTileResult(callbacks, pending, x,
+												y, z, null, error.getMessage());
+									}
+
+									public void onDropped() {
+										sendTileResult(callbacks, pending, x,
+												y, z, null, DROPPED_MESSAGE);
+									}
+								});
+					}
+				} catch (JSONException je) {
+					callbackContext.error(je.getMessage());
+				} catch (NumberFormatException nfe) {
+					callbackContext.error(nfe.getMessage());
+				} catch (Exception e) {
+					callbackContext.error(e.getMessage());
+				}
+
+				return true;
+			} else if ("cache-viewport".equals(action)) {
+
+				try {
+					JSONArray bounds = args.getJSONArray(0);
+					MapsforgeCache.INSTANCE.setViewport(bounds.getDouble(0),
+							bounds.getDouble(1), bounds.getDouble(2),
+							bounds.getDouble(3),
+							Byte.parseByte(args.getString(1)));
+					callbackContext.success();
+				} catch (JSONException je) {
+					callbackContext.error(je.getMessage());
+				} catch (NumberFormatException nfe) {
+					callbackContext.error(nfe.getMessage());
+				} catch (Exception e) {
+					callbackContext.error(e.getMessage());
+				}
+
+				return true;
+			} else if ("cache-seed".equals(action)) {
+
+				try {
+					JSONArray bounds = args.getJSONArray(0);
+					final double minLat = bounds.getDouble(0);
+					final double minLng = bounds.getDouble(1);
+					final double maxLat = bounds.getDouble(2);
+					final double maxLng = bounds.getDouble(3);
+					final byte minZoom = Byte.parseByte(args.getString(1));
+					final byte maxZoom = Byte.parseByte(args.getString(2));
 					final CallbackContext callbacks = callbackContext;
 
 					cordova.getThreadPool().execute(new Runnable() {
+
+						@Override
 						public void run() {
 							try {
-								String path = MapsforgeCache.INSTANCE
-										.getTilePath(x, y, z);
-								callbacks.success(path);
-							} catch (IOException e) {
+								MapsforgeCache.INSTANCE.startSeeding(minLat,
+										minLng, maxLat, maxLng, minZoom,
+										maxZoom, new TileSeeder.Listener() {
+											@Override
+											public void onProgress(
+													TileSeeder seeder) {
+												sendSeedProgress(callbacks,
+														seeder);
+											}
+										});
+							} catch (IllegalArgumentException e) {
+								callbacks.error(e.getMessage());
+							} catch (IllegalStateException e) {
 								callbacks.error(e.getMessage());
 							} catch (Exception e) {
 								callbacks.error(e.getMessage());
@@ -367,6 +613,45 @@ public class MapsforgePlugin extends CordovaPlugin {
 					callbackContext.error(e.getMessage());
 				}
 
+				return true;
+			} else if ("cache-seed-cancel".equals(action)
+					|| "cache-seed-pause".equals(action)
+					|| "cache-seed-resume".equals(action)) {
+
+				try {
+					TileSeeder seeder = MapsforgeCache.INSTANCE.getSeeder(args
+							.getInt(0));
+
+					if (seeder == null) {
+						callbackContext.error("Seeding not found: "
+								+ args.getInt(0));
+					} else {
+						if ("cache-seed-cancel".equals(action)) {
+							seeder.cancel();
+						} else if ("cache-seed-pause".equals(action)) {
+							seeder.pause();
+						} else {
+							seeder.resume();
+						}
+						callbackContext.success();
+					}
+				} catch (JSONException je) {
+					callbackContext.error(je.getMessage());
+				} catch (Exception e) {
+					callbackContext.error(e.getMessage());
+				}
+
+				return true;
+			} else if ("cache-stats".equals(action)) {
+
+				try {
+					callbackContext.success(MapsforgeCache.INSTANCE.getStats());
+				} catch (JSONException je) {
+					callbackContext.error(je.getMessage());
+				} catch (Exception e) {
+					callbackContext.error(e.getMessage());
+				}
+
 				return true;
 			} else if ("cache-initialize".equals(action)) {
 
@@ -413,6 +698,100 @@ public class MapsforgePlugin extends CordovaPlugin {
 					callbackContext.error(e.getMessage());
 				}
 
+				return true;
+			} else if ("cache-map-files".equals(action)) {
+
+				try {
+					JSONArray paths = args.getJSONArray(0);
+					final List<String> mapFiles = new ArrayList<String>(
+							paths.length());
+					for (int i = 0; i < paths.length(); i++) {
+						mapFiles.add(paths.getString(i));
+					}
+					final CallbackContext callbacks = callbackContext;
+
+					cordova.getThreadPool().execute(new Runnable() {
+
+						@Override
+						public void run() {
+							try {
+								MapsforgeCache.INSTANCE.setMapFilePaths(mapFiles);
+								callbacks.success();
+							} catch (IllegalArgumentException e) {
+								callbacks.error(e.getMessage());
+							} catch (FileNotFoundException e) {
+								callbacks.error(e.getMessage());
+							} catch (Exception e) {
+								callbacks.error(e.getMessage());
+							}
+						}
+					});
+				} catch (JSONException je) {
+					callbackContext.error(je.getMessage());
+				} catch (Exception e) {
+					callbackContext.error(e.getMessage());
+				}
+
+				return true;
+			} else if ("cache-renderer-count".equals(action)) {
+
+				try {
+					final int rendererCount = args.getInt(0);
+					final CallbackContext callbacks = callbackContext;
+
+					cordova.getThreadPool().execute(new Runnable() {
+
+						@Override
+						public void run() {
+							try {
+								MapsforgeCache.INSTANCE
+										.setRendererCount(rendererCount);
+								callbacks.success();
+							} catch (IllegalArgumentException e) {
+								callbacks.error(e.getMessage());
+							} catch (Exception e) {
+								callbacks.error(e.getMessage());
+							}
+						}
+					});
+				} catch (JSONException je) {
+					callbackContext.error(je.getMessage());
+				} catch (Exception e) {
+					callbackContext.error(e.getMessage());
+				}
+
+				return true;
+			} else if ("cache-metatile".equals(action)) {
+
+				try {
+					MapsforgeCache.INSTANCE.setMetatileSize(args.getInt(0));
+					callbackContext.success();
+				} catch (JSONException je) {
+					callbackContext.error(je.getMessage());
+				} catch (IllegalArgumentException e) {
+					callbackContext.error(e.getMessage());
+				} catch (Exception e) {
+					callbackContext.error(e.getMessage());
+				}
+
+				return true;
+			} else if ("cache-format".equals(action)) {
+
+				try {
+					String format = args.getString(0);
+					int quality = args.optInt(1,
+							MapsforgeCache.FORMAT_PNG.equals(format) ? TileFormat.DEFAULT_PNG_LEVEL
+									: TileFormat.DEFAULT_QUALITY);
+					MapsforgeCache.INSTANCE.setTileFormat(format, quality);
+					callbackContext.success();
+				} catch (JSONException je) {
+					callbackContext.error(je.getMessage());
+				} catch (IllegalArgumentException e) {
+					callbackContext.error(e.getMessage());
+				} catch (Exception e) {
+					callbackContext.error(e.getMessage());
+				}
+
 				return true;
 			} else if ("cache-max-size".equals(action)) {
 
@@ -425,6 +804,18 @@ public class MapsforgePlugin extends CordovaPlugin {
 					callbackContext.error(e.getMessage());
 				}
 
+				return true;
+			} else if ("cache-memory-size".equals(action)) {
+
+				try {
+					MapsforgeCache.INSTANCE.setMemoryCacheSize(args.getInt(0));
+					callbackContext.success();
+				} catch (JSONException je) {
+					callbackContext.error(je.getMessage());
+				} catch (Exception e) {
+					callbackContext.error(e.getMessage());
+				}
+
 				return true;
 			} else if ("cache-max-age".equals(action)) {
 
@@ -487,6 +878,34 @@ public class MapsforgePlugin extends CordovaPlugin {
 					callbackContext.error(e.getMessage());
 				}
 
+				return true;
+			} else if ("cache-storage".equals(action)) {
+
+				try {
+					final String storageType = args.getString(0);
+					final CallbackContext callbacks = callbackContext;
+
+					cordova.getThreadPool().execute(new Runnable() {
+
+						@Override
+						public void run() {
+							try {
+								MapsforgeCache.INSTANCE
+										.setStorageType(storageType);
+								callbacks.success();
+							} catch (IllegalArgumentException e) {
+								callbacks.error(e.getMessage());
+							} catch (Exception e) {
+								callbacks.error(e.getMessage());
+							}
+						}
+					});
+				} catch (JSONException je) {
+					callbackContext.error(je.getMessage());
+				} catch (Exception e) {
+					callbackContext.error(e.getMessage());
+				}
+
 				return true;
 			} else if ("cache-tile-size".equals(action)) {
 
@@ -499,6 +918,18 @@ public class MapsforgePlugin extends CordovaPlugin {
 					callbackContext.error(e.getMessage());
 				}
 
+				return true;
+			} else if ("cache-dedupe".equals(action)) {
+
+				try {
+					MapsforgeCache.INSTANCE.setDeduplication(args.getBoolean(0));
+					callbackContext.success();
+				} catch (JSONException je) {
+					callbackContext.error(je.getMessage());
+				} catch (Exception e) {
+					callbackContext.error(e.getMessage());
+				}
+
 				return true;
 			} else if ("cache-clean-destroy".equals(action)) {
 
@@ -572,6 +1003,41 @@ public class MapsforgePlugin extends CordovaPlugin {
 					callbackContext.error(e.getMessage());
 				}
 
+				return true;
+			} else if ("cache-server-start".equals(action)) {
+
+				try {
+					final int port = args.optInt(0, 0);
+					final CallbackContext callbacks = callbackContext;
+
+					cordova.getThreadPool().execute(new Runnable() {
+
+						@Override
+						public void run() {
+							try {
+								callbacks.success(MapsforgeCache.INSTANCE
+										.startTileServer(port));
+							} catch (IOException e) {
+								callbacks.error(e.getMessage());
+							} catch (Exception e) {
+								callbacks.error(e.getMessage());
+							}
+						}
+					});
+				} catch (Exception e) {
+					callbackContext.error(e.getMessage());
+				}
+
+				return true;
+			} else if ("cache-server-stop".equals(action)) {
+
+				try {
+					MapsforgeCache.INSTANCE.stopTileServer();
+					callbackContext.success();
+				} catch (Exception e) {
+					callbackContext.error(e.getMessage());
+				}
+
 				return true;
 			} else if ("cache-destroy".equals(action)) {
 				try {
@@ -587,6 +1053,177 @@ public class MapsforgePlugin extends CordovaPlugin {
 		return false; // Returning false results in a "MethodNotFound" error.
 	}
 
+	/**
+	 * Returns the id of the drawable of a marker, or the id of the green
+	 * marker if it does not exist.
+	 * 
+	 * @param name
+	 *            Name of the drawable
+	 * @return The drawable id
+	 */
+	private int getMarkerId(String name) {
+		Activity context = this.cordova.getActivity();
+
+		int markerId = context.getResources().getIdentifier(name, "drawable",
+				context.getPackageName());
+		if (markerId == 0) {
+			Log.i(MapsforgePlugin.TAG,
+					"Marker not found...using default marker: marker_green");
+			markerId = context.getResources().getIdentifier("marker_green",
+					"drawable", context.getPackageName());
+		}
+		return markerId;
+	}
+
+	/**
+	 * Reads the groups of markers of <i>native-markers</i> and
+	 * <i>native-cluster-markers</i>: pairs of marker name and coordinates, as
+	 * read by {@link #getCoordinates(JSONArray, int)}.
+	 * 
+	 * @param args
+	 *            Arguments of the action
+	 * @param markerIds
+	 *            Array where the drawable id of every group is stored
+	 * @return The coordinates of every group
+	 * @throws JSONException
+	 *             If the arguments are not valid
+	 */
+	private double[][] getMarkerGroups(JSONArray args, int[] markerIds)
+			throws JSONException {
+		if (args.length() % 2 != 0)
+			throw new JSONException(
+					"Invalid arguments. Should be: (String marker, [double points], ...)");
+
+		double[][] points = new double[markerIds.length][];
+		for (int i = 0; i < markerIds.length; i++) {
+			markerIds[i] = getMarkerId(args.getString(2 * i));
+			points[i] = getCoordinates(args, 2 * i + 1);
+		}
+		return points;
+	}
+
+	/**
+	 * Checks the coordinates of a tile requested by <i>cache-get-tile</i> or
+	 * <i>cache-get-tiles</i>.
+	 * 
+	 * @throws IllegalArgumentException
+	 *             If the tile does not exist at its zoom level
+	 */
+	private static void checkTile(long x, long y, byte z)
+			throws IllegalArgumentException {
+		if (!MapsforgeCache.isValidTile(z, x, y)) {
+			throw new IllegalArgumentException("Incorrect tile: [" + x + ", "
+					+ y + ", " + z + "]");
+		}
+	}
+
+	/**
+	 * Reads the coordinates of an overlay, given either as an array of
+	 * numbers or as an <code>ArrayBuffer</code> (which arrives encoded in
+	 * base64) with the format of {@link PackedCoordinates}.
+	 * 
+	 * @param args
+	 *            Arguments of the action
+	 * @param index
+	 *            Position of the coordinates in the arguments
+	 * @return The coordinates, with the latitudes in the odd positions and the
+	 *         longitudes in the even positions
+	 * @throws JSONException
+	 *             If the array is not valid
+	 * @throws IllegalArgumentException
+	 *             If the buffer is not valid
+	 */
+	private static double[] getCoordinates(JSONArray args, int index)
+			throws JSONException, IllegalArgumentException {
+		if (!(args.get(index) instanceof JSONArray)) {
+			return PackedCoordinates.decode(args.getString(index));
+		}
+
+		JSONArray points = args.getJSONArray(index);
+		if (points.length() % 2 != 0)
+			throw new JSONException(
+					"Invalid array of coordinates. Length should be multiple of 2");
+
+		return toDoubleArray(points);
+	}
+
+	/**
+	 * @return The values of a JSON array of numbers
+	 * @throws JSONException
+	 *             If any value is not a number
+	 */
+	private static double[] toDoubleArray(JSONArray array)
+			throws JSONException {
+		double[] values = new double[array.length()];
+		for (int i = 0; i < values.length; i++) {
+			values[i] = array.getDouble(i);
+		}
+		return values;
+	}
+
+	/**
+	 * Sends the result of one of the tiles requested through
+	 * <i>cache-get-tiles</i>. The callback is kept until the result of the
+	 * last tile of the request has been sent.
+	 * 
+	 * @param callbacks
+	 *            Callback of the request
+	 * @param pending
+	 *            Number of tiles of the request without result yet
+	 * @param path
+	 *            Path of the tile, if it could be served
+	 * @param error
+	 *            Why the tile could not be served, or null
+	 */
+	private void sendTileResult(CallbackContext callbacks,
+			AtomicInteger pending, long x, long y, byte z, String path,
+			String error) {
+		PluginResult result;
+		try {
+			JSONObject tile = new JSONObject();
+			tile.put("x", x);
+			tile.put("y", y);
+			tile.put("z", z);
+
+			if (error == null) {
+				tile.put("path", path);
+				result = new PluginResult(PluginResult.Status.OK, tile);
+			} else {
+				tile.put("error", error);
+				result = new PluginResult(PluginResult.Status.ERROR, tile);
+			}
+		} catch (JSONException je) {
+			result = new PluginResult(PluginResult.Status.JSON_EXCEPTION,
+					je.getMessage());
+		}
+
+		result.setKeepCallback(pending.decrementAndGet() > 0);
+		callbacks.sendPluginResult(result);
+	}
+
+	/**
+	 * Sends the progress of a seeding started through <i>cache-seed</i>. The
+	 * callback is kept until the seeding finishes.
+	 * 
+	 * @param callbacks
+	 *            Callback of the request
+	 * @param seeder
+	 *            The seeder
+	 */
+	private void sendSeedProgress(CallbackContext callbacks, TileSeeder seeder) {
+		PluginResult result;
+		try {
+			result = new PluginResult(PluginResult.Status.OK,
+					seeder.getProgress());
+		} catch (JSONException je) {
+			result = new PluginResult(PluginResult.Status.JSON_EXCEPTION,
+					je.getMessage());
+		}
+
+		result.setKeepCallback(!seeder.isFinished());
+		callbacks.sendPluginResult(result);
+	}
+
 	/**
 	 * Check which one of the modes is active (or both), and log it with
 	 * <i>INFO</i> level
@@ -0,0 +1,108 @@
+package com.suarez.cordova.mapsforge;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+import android.util.Base64;
+
+/**
+ * Coordinates sent from JavaScript as an <code>ArrayBuffer</code>, which
+ * Cordova passes to the plugin encoded in base64, instead of an array of
+ * numbers. They take less space than JSON and are read straight into an array
+ * of doubles.
+ * <p>
+ * The buffer starts with a header of two little-endian 32-bit integers: the
+ * format and the number of values (latitudes and longitudes), which must be
+ * even. It is followed by the values, little-endian as well, in one of these
+ * formats:
+ * <ul>
+ * <li>{@link #FORMAT_FLOAT64}: doubles, in degrees.</li>
+ * <li>{@link #FORMAT_DELTA_INT32}: 32-bit integers, in millionths of a degree.
+ * The first latitude and longitude are absolute, and every other value is the
+ * difference with the previous latitude or longitude, so the values of tracks
+ * are small and compress well.</li>
+ * </ul>
+ *
+ * @author Adolfo Fernandez Suarez
+ * @version 0.1
+ */
+final class PackedCoordinates {
+
+	/**
+	 * Values stored as doubles, in degrees.
+	 */
+	static final int FORMAT_FLOAT64 = 1;
+
+	/**
+	 * Values stored as differences between consecutive points, in millionths
+	 * of a degree.
+	 */
+	static final int FORMAT_DELTA_INT32 = 2;
+
+	private static final int HEADER_SIZE = 8;
+	private static final double MICRODEGREES = 1000000d;
+
+	private PackedCoordinates() {
+	}
+
+	/**
+	 * Decodes a buffer of coordinates.
+	 *
+	 * @param base64
+	 *            The buffer, encoded in base64
+	 * @return The coordinates, with the latitudes in the odd positions and the
+	 *         longitudes in the even positions
+	 * @throws IllegalArgumentException
+	 *             If the buffer is not valid
+	 */
+	static double[] decode(String base64) throws IllegalArgumentException {
+		ByteBuffer buffer = ByteBuffer.wrap(Base64.decode(base64,
+				Base64.DEFAULT));
+		buffer.order(ByteOrder.LITTLE_ENDIAN);
+		if (buffer.remaining() < HEADER_SIZE) {
+			throw new IllegalArgumentException(
+					"Invalid buffer of coordinates. Header is missing");
+		}
+
+		int format = buffer.getInt();
+		int count = buffer.getInt();
+		if (count < 0 || count % 2 != 0) {
+			throw new IllegalArgumentException(
+					"Invalid buffer of coordinates. Length should be multiple of 2");
+		}
+
+		// The size is checked before allocating anything, so a wrong count
+		// in the header can not run out of memory
+		if (format == FORMAT_FLOAT64) {
+			checkSize(buffer, count, 8);
+			double[] values = new double[count];
+			buffer.asDoubleBuffer().get(values);
+			return values;
+		} else if (format == FORMAT_DELTA_INT32) {
+			checkSize(buffer, count, 4);
+			double[] values = new double[count];
+			IntBuffer deltas = buffer.asIntBuffer();
+			int lat = 0;
+			int lng = 0;
+			for (int i = 0; i < count; i += 2) {
+				lat += deltas.get();
+				lng += deltas.get();
+				values[i] = lat / MICRODEGREES;
+				values[i + 1] = lng / MICRODEGREES;
+			}
+			return values;
+		} else {
+			throw new IllegalArgumentException(
+					"Invalid buffer of coordinates. Unknown format: " + format);
+		}
+	}
+
+	private static void checkSize(ByteBuffer buffer, int count, int valueSize) {
+		if (buffer.remaining() != (long) count * valueSize) {
+			throw new IllegalArgumentException("Invalid buffer of coordinates. "
+					+ count + " values expected, found "
+					+ buffer.remaining() / valueSize);
+		}
+	}
+}
@@ -0,0 +1,294 @@
+package com.suarez.cordova.mapsforge;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.mapsforge.map.rendertheme.XmlRenderTheme;
+
+import android.content.res.AssetManager;
+
+/**
+ * Render themes loaded by {@link MapsforgeCache} and {@link MapsforgeNative},
+ * identified by the hash of their content.
+ * <p>
+ * The XML of every theme is read and hashed once, and kept in memory, so
+ * switching back to a theme does not read its file again. The same content
+ * always gets the same {@link Theme} instance, even from other paths, and
+ * the renderers of {@link RendererPool} keep the last themes they parsed, so
+ * setting the current theme again, or switching back to a recent one, costs
+ * nothing. Files are only read again when their size or modification time
+ * change, and themes from the assets are read once per process, since they
+ * can not change.
+ *
+ * @author Adolfo Fernandez Suarez
+ * @version 0.1
+ */
+final class RenderThemeCache {
+
+	/**
+	 * Render theme whose XML is kept in memory. Two themes are equal if they
+	 * have the same content and the same directory, which is where their
+	 * symbols are loaded from.
+	 */
+	static final class Theme implements XmlRenderTheme {
+		private final String hash;
+		private final byte[] xml;
+		private final String relativePathPrefix;
+		private final int mapBackground;
+
+		private Theme(String hash, byte[] xml, String relativePathPrefix) {
+			this.hash = hash;
+			this.xml = xml;
+			this.relativePathPrefix = relativePathPrefix;
+			this.mapBackground = parseMapBackground(xml);
+		}
+
+		/**
+		 * @return Hexadecimal SHA-1 hash of the XML
+		 */
+		String getHash() {
+			return hash;
+		}
+
+		/**
+		 * @return Color (ARGB) of the areas without map data, taken from the
+		 *         {@code map-background} attribute of the theme
+		 */
+		int getMapBackground() {
+			return mapBackground;
+		}
+
+		@Override
+		public String getRelativePathPrefix() {
+			return relativePathPrefix;
+		}
+
+		@Override
+		public InputStream getRenderThemeAsStream() {
+			return new ByteArrayInputStream(xml);
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (this == obj) {
+				return true;
+			}
+			if (!(obj instanceof Theme)) {
+				return false;
+			}
+
+			Theme other = (Theme) obj;
+			return hash.equals(other.hash)
+					&& relativePathPrefix.equals(other.relativePathPrefix);
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * hash.hashCode() + relativePathPrefix.hashCode();
+		}
+	}
+
+	// Theme loaded from a file, valid while the file does not change
+	private static class LoadedFile {
+		final long length;
+		final long lastModified;
+		final Theme theme;
+
+		LoadedFile(long length, long lastModified, Theme theme) {
+			this.length = length;
+			this.lastModified = lastModified;
+			this.theme = theme;
+		}
+	}
+
+	// Themes kept in memory. They are small, but there is no reason to keep
+	// every version of a theme that is being edited
+	private static final int MAX_THEMES = 16;
+
+	// Background used by mapsforge when the theme does not set one
+	private static final int DEFAULT_MAP_BACKGROUND = 0xffffffff;
+	private static final Pattern MAP_BACKGROUND = Pattern
+			.compile("map-background\\s*=\\s*[\"']#([0-9a-fA-F]{8}|[0-9a-fA-F]{6})[\"']");
+
+	private static final Map<String, LoadedFile> files = new HashMap<String, LoadedFile>();
+	// Themes from the assets, by asset path. They are never removed
+	private static final Map<String, Theme> assetThemes = new HashMap<String, Theme>();
+	private static final Map<Theme, Theme> themes = new LinkedHashMap<Theme, Theme>(
+			16, 0.75f, true) {
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Theme, Theme> eldest) {
+			if (size() > MAX_THEMES) {
+				Iterator<LoadedFile> it = files.values().iterator();
+				while (it.hasNext()) {
+					if (it.next().theme == eldest.getValue()) {
+						it.remove();
+					}
+				}
+				return true;
+			}
+			return false;
+		}
+	};
+
+	private RenderThemeCache() {
+	}
+
+	/**
+	 * Returns the theme stored in the given file.
+	 *
+	 * @param file
+	 *            XML file of the theme
+	 * @return The theme, shared with every other caller that loads the same
+	 *         content from the same directory
+	 * @throws FileNotFoundException
+	 *             If the file does not exist
+	 * @throws IOException
+	 *             If the file can not be read
+	 */
+	static synchronized Theme get(File file) throws IOException {
+		if (!file.isFile()) {
+			throw new FileNotFoundException("Render theme doesn't exist: "
+					+ file.getAbsolutePath());
+		}
+
+		String path = file.getAbsolutePath();
+		long length = file.length();
+		long lastModified = file.lastModified();
+		LoadedFile loaded = files.get(path);
+		if (loaded != null && loaded.length == length
+				&& loaded.lastModified == lastModified) {
+			// Refreshes its position in the LRU order
+			themes.get(loaded.theme);
+			return loaded.theme;
+		}
+
+		byte[] xml = readFile(file);
+		Theme theme = new Theme(getHash(xml), xml, file.getAbsoluteFile()
+				.getParent());
+		Theme existing = themes.get(theme);
+		if (existing == null) {
+			themes.put(theme, theme);
+		} else {
+			theme = existing;
+		}
+		files.put(path, new LoadedFile(length, lastModified, theme));
+		return theme;
+	}
+
+	/**
+	 * Returns the theme stored in an asset file. Its symbols must be assets
+	 * as well ({@code assets:} sources).
+	 *
+	 * @param assets
+	 *            Assets of the application
+	 * @param path
+	 *            Path of the theme in the assets
+	 * @return The theme
+	 * @throws FileNotFoundException
+	 *             If the asset does not exist
+	 * @throws IOException
+	 *             If the asset can not be read
+	 */
+	static synchronized Theme getAsset(AssetManager assets, String path)
+			throws IOException {
+		Theme theme = assetThemes.get(path);
+		if (theme == null) {
+			byte[] xml = ThemeAssets.readAsset(assets, path);
+			theme = new Theme(getHash(xml), xml, "");
+			assetThemes.put(path, theme);
+		}
+		return theme;
+	}
+
+	/**
+	 * Removes all the themes from memory.
+	 */
+	static synchronized void clear() {
+		files.clear();
+		themes.clear();
+		assetThemes.clear();
+	}
+
+	/**
+	 * @return Hexadecimal SHA-1 hash of the data. Also names the shared images
+	 *         of the deduplicated tiles
+	 */
+	static String getHash(byte[] data) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-1");
+			StringBuilder hex = new StringBuilder(40);
+			for (byte b : digest.digest(data)) {
+				hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+				hex.append(Character.forDigit(b & 0xf, 16));
+			}
+			return hex.toString();
+		} catch (NoSuchAlgorithmException e) {
+			// Every Java platform has SHA-1
+			throw new IllegalStateException(e);
+		}
+	}
+
+	// Reads the map-background attribute of the rendertheme element, which
+	// is either #RRGGBB or #AARRGGBB
+	private static int parseMapBackground(byte[] xml) {
+		String text;
+		try {
+			text = new String(xml, "UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			return DEFAULT_MAP_BACKGROUND;
+		}
+
+		int start = text.indexOf("<rendertheme");
+		if (start < 0) {
+			return DEFAULT_MAP_BACKGROUND;
+		}
+		int end = text.indexOf('>', start);
+		Matcher matcher = MAP_BACKGROUND.matcher((end < 0) ? text
+				.substring(start) : text.substring(start, end));
+		if (!matcher.find()) {
+			return DEFAULT_MAP_BACKGROUND;
+		}
+
+		String color = matcher.group(1);
+		long value = Long.parseLong(color, 16);
+		if (color.length() == 6) {
+			value |= 0xff000000L;
+		}
+		return (int) value;
+	}
+
+	private static byte[] readFile(File file) throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			byte[] data = new byte[(int) file.length()];
+			int offset = 0;
+			int read;
+			while (offset < data.length
+					&& (read = in.read(data, offset, data.length - offset)) != -1) {
+				offset += read;
+			}
+			if (offset < data.length) {
+				throw new IOException("Couldn't read render theme: "
+						+ file.getAbsolutePath());
+			}
+			return data;
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,253 @@
+package com.suarez.cordova.mapsforge;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.mapsforge.core.graphics.GraphicFactory;
+import org.mapsforge.core.model.BoundingBox;
+import org.mapsforge.map.layer.renderer.DatabaseRenderer;
+import org.mapsforge.map.reader.MapDatabase;
+import org.mapsforge.map.reader.header.FileOpenResult;
+import org.mapsforge.map.reader.header.MapFileInfo;
+
+/**
+ * Fixed size pool of renderers for the same map file. Every worker owns its
+ * own <code>MapDatabase</code> and <code>DatabaseRenderer</code>, since none of
+ * them can be shared between threads, so as many tiles as workers can be
+ * rendered at the same time. A <code>DatabaseRenderer</code> parses the theme
+ * again whenever it changes, so every worker keeps one renderer for each of
+ * the last {@link #THEME_RENDERERS} themes it used, all of them reading its
+ * <code>MapDatabase</code>, and switching between them costs nothing.
+ *
+ * @author Adolfo Fernandez Suarez
+ * @version 0.1
+ */
+class RendererPool {
+
+	/**
+	 * A renderer that can be borrowed from the pool. It must be given back
+	 * through {@link RendererPool#release(Worker)} once the job is done.
+	 */
+	static class Worker {
+		final RendererPool pool;
+		final MapDatabase mapDatabase;
+		private final GraphicFactory graphicFactory;
+		// Renderer of every recent theme, least recently used first
+		private final LinkedHashMap<RenderThemeCache.Theme, DatabaseRenderer> renderers = new LinkedHashMap<RenderThemeCache.Theme, DatabaseRenderer>(
+				THEME_RENDERERS + 1, 0.75f, true);
+
+		private Worker(RendererPool pool, MapDatabase mapDatabase,
+				GraphicFactory graphicFactory) {
+			this.pool = pool;
+			this.mapDatabase = mapDatabase;
+			this.graphicFactory = graphicFactory;
+		}
+
+		/**
+		 * Returns the renderer of a theme, which has already parsed it if the
+		 * theme is one of the last ones used by the worker.
+		 *
+		 * @param theme
+		 *            Render theme of the job
+		 * @return The renderer
+		 */
+		DatabaseRenderer getRenderer(RenderThemeCache.Theme theme) {
+			DatabaseRenderer renderer = renderers.get(theme);
+			if (renderer == null) {
+				if (renderers.size() >= THEME_RENDERERS) {
+					Iterator<DatabaseRenderer> eldest = renderers.values()
+							.iterator();
+					eldest.next().destroy();
+					eldest.remove();
+				}
+				renderer = new DatabaseRenderer(mapDatabase, graphicFactory);
+				renderers.put(theme, renderer);
+			}
+			return renderer;
+		}
+
+		private void destroy() {
+			for (DatabaseRenderer renderer : renderers.values()) {
+				renderer.destroy();
+			}
+			renderers.clear();
+			if (mapDatabase.hasOpenFile()) {
+				mapDatabase.closeFile();
+			}
+		}
+	}
+
+	/**
+	 * Themes whose renderer is kept by every worker.
+	 */
+	static final int THEME_RENDERERS = 3;
+
+	// Time that acquire waits before checking if the pool has been closed
+	private static final long ACQUIRE_POLL_MS = 100;
+
+	private final File mapFile;
+	private final String mapFingerprint;
+	private final BoundingBox boundingBox;
+	// State of the file when it was opened
+	private final long mapFileLength;
+	private final long mapFileLastModified;
+	private final List<Worker> workers;
+	private final BlockingQueue<Worker> idleWorkers;
+	private volatile boolean closed;
+
+	/**
+	 * Opens <code>size</code> renderers on the given map file.
+	 *
+	 * @param mapFile
+	 *            Map file that all the workers will read
+	 * @param graphicFactory
+	 *            Factory used by the renderers
+	 * @param size
+	 *            Number of workers. Values lower than 1 are set to 1
+	 * @throws IllegalArgumentException
+	 *             If the map file can not be opened
+	 */
+	RendererPool(File mapFile, GraphicFactory graphicFactory, int size)
+			throws IllegalArgumentException {
+		if (size < 1) {
+			size = 1;
+		}
+
+		this.mapFile = mapFile;
+		this.mapFileLength = mapFile.length();
+		this.mapFileLastModified = mapFile.lastModified();
+		this.workers = new ArrayList<Worker>(size);
+		this.idleWorkers = new ArrayBlockingQueue<Worker>(size);
+
+		for (int i = 0; i < size; i++) {
+			MapDatabase mapDatabase = new MapDatabase();
+			FileOpenResult result = mapDatabase.openFile(mapFile);
+			if (!result.isSuccess()) {
+				destroy();
+				throw new IllegalArgumentException("Couldn't open map file: "
+						+ result.getErrorMessage());
+			}
+
+			Worker worker = new Worker(this, mapDatabase, graphicFactory);
+			workers.add(worker);
+			idleWorkers.add(worker);
+		}
+
+		MapFileInfo info = workers.get(0).mapDatabase.getMapFileInfo();
+		this.mapFingerprint = getFingerprint(info);
+		this.boundingBox = info.boundingBox;
+	}
+
+	/**
+	 * Takes an idle worker, waiting until one is released if all of them are
+	 * busy.
+	 *
+	 * @return The worker, or null if the pool has been destroyed meanwhile
+	 * @throws InterruptedException
+	 */
+	Worker acquire() throws InterruptedException {
+		while (!closed) {
+			Worker worker = idleWorkers.poll(ACQUIRE_POLL_MS,
+					TimeUnit.MILLISECONDS);
+			if (worker != null) {
+				if (closed) {
+					worker.destroy();
+					return null;
+				}
+				return worker;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Gives back a worker obtained through {@link #acquire()}. If the pool has
+	 * been destroyed while the worker was busy it is destroyed as well.
+	 *
+	 * @param worker
+	 *            The worker to release
+	 */
+	void release(Worker worker) {
+		if (worker == null) {
+			return;
+		}
+
+		if (closed) {
+			worker.destroy();
+		} else {
+			idleWorkers.offer(worker);
+		}
+	}
+
+	/**
+	 * Closes every idle worker. Busy workers will be closed as soon as they are
+	 * released.
+	 */
+	void destroy() {
+		closed = true;
+
+		Worker worker;
+		while ((worker = idleWorkers.poll()) != null) {
+			worker.destroy();
+		}
+	}
+
+	/**
+	 * @return The map file used by the workers
+	 */
+	File getMapFile() {
+		return mapFile;
+	}
+
+	/**
+	 * Returns a short identifier of the version of the map file, taken from
+	 * its header, which changes when the map is updated.
+	 *
+	 * @return Eight hexadecimal digits
+	 */
+	String getMapFingerprint() {
+		return mapFingerprint;
+	}
+
+	/**
+	 * @return Area covered by the map file, from its header
+	 */
+	BoundingBox getBoundingBox() {
+		return boundingBox;
+	}
+
+	/**
+	 * @return True if the map file has not been modified since the pool was
+	 *         created
+	 */
+	boolean isUpToDate() {
+		return mapFile.length() == mapFileLength
+				&& mapFile.lastModified() == mapFileLastModified;
+	}
+
+	/**
+	 * @return Number of workers in the pool
+	 */
+	int getSize() {
+		return workers.size();
+	}
+
+	// CRC32 of the creation date and the size of the map file
+	private static String getFingerprint(MapFileInfo info) {
+		CRC32 crc = new CRC32();
+		long[] values = { info.mapDate, info.fileSize };
+		for (long value : values) {
+			for (int shift = 56; shift >= 0; shift -= 8) {
+				crc.update((int) (value >>> shift));
+			}
+		}
+		return String.format("%08x", crc.getValue());
+	}
+}
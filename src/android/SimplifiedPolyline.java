@@ -0,0 +1,312 @@
+package com.suarez.cordova.mapsforge;
+
+import java.util.Arrays;
+
+import org.mapsforge.core.graphics.Canvas;
+import org.mapsforge.core.graphics.GraphicFactory;
+import org.mapsforge.core.graphics.Paint;
+import org.mapsforge.core.graphics.Path;
+import org.mapsforge.core.model.BoundingBox;
+import org.mapsforge.core.model.Point;
+import org.mapsforge.core.util.LatLongUtils;
+import org.mapsforge.core.util.MercatorProjection;
+import org.mapsforge.map.layer.Layer;
+
+/**
+ * Polyline for long tracks, drawn with a simplified version of the line at
+ * every zoom level. The simplified line of a zoom level is computed with the
+ * Douglas-Peucker algorithm the first time the map is drawn at that zoom, and
+ * kept, so it never differs from the whole line by more than half a pixel.
+ * Only the segments that cross the visible area are drawn.
+ * <p>
+ * The points are kept as their pixel coordinates at {@link #MAX_ZOOM}, so
+ * drawing does not compute any projection. Points can be appended to the
+ * line, e.g. to follow a live track: the arrays grow by doubling their
+ * capacity, and only the end of the simplified lines is computed again.
+ *
+ * @author Adolfo Fernandez Suarez
+ * @version 0.1
+ */
+class SimplifiedPolyline extends Layer {
+
+	/**
+	 * Highest zoom level with its own simplified line. Higher zoom levels
+	 * use the line of this one.
+	 */
+	static final byte MAX_ZOOM = 21;
+
+	// Pixel coordinates of the points, independent of the tile size in use
+	private static final int GRID_TILE_SIZE = 256;
+	// Maximum distance (in pixels) between the simplified and the whole line
+	private static final double TOLERANCE = 0.5;
+	// Pixels drawn around the visible area, so the ends of the wide lines
+	// are not cut
+	private static final int CLIP_MARGIN = 64;
+
+	private final Paint paint;
+	private final Path path;
+
+	// Pixel coordinates of the points at MAX_ZOOM. The arrays may have room
+	// for more points than size
+	private double[] pixelsX;
+	private double[] pixelsY;
+	private int size;
+
+	// Indexes of the points of the simplified line of every zoom level, or
+	// null if it has not been computed yet
+	private final int[][] simplified = new int[MAX_ZOOM + 1][];
+
+	/**
+	 * Creates a polyline.
+	 *
+	 * @param paint
+	 *            Paint of the line
+	 * @param graphicFactory
+	 *            Factory of the path that is drawn
+	 * @param points
+	 *            Coordinates of the line, with the latitudes in the odd
+	 *            positions and the longitudes in the even positions
+	 * @throws IllegalArgumentException
+	 *             If a coordinate is not valid
+	 */
+	SimplifiedPolyline(Paint paint, GraphicFactory graphicFactory,
+			double[] points) throws IllegalArgumentException {
+		this.paint = paint;
+		this.path = graphicFactory.createPath();
+
+		validate(points);
+		pixelsX = new double[points.length / 2];
+		pixelsY = new double[points.length / 2];
+		project(points);
+	}
+
+	/**
+	 * Appends points to the end of the line, and redraws it once.
+	 *
+	 * @param points
+	 *            Coordinates of the new points, with the latitudes in the odd
+	 *            positions and the longitudes in the even positions
+	 * @throws IllegalArgumentException
+	 *             If a coordinate is not valid, in which case no point is
+	 *             appended
+	 */
+	void append(double[] points) throws IllegalArgumentException {
+		if (points.length < 2) {
+			return;
+		}
+		validate(points);
+
+		synchronized (this) {
+			int previousSize = size;
+			int newSize = size + points.length / 2;
+			if (newSize > pixelsX.length) {
+				int capacity = Math.max(newSize, 2 * pixelsX.length);
+				pixelsX = Arrays.copyOf(pixelsX, capacity);
+				pixelsY = Arrays.copyOf(pixelsY, capacity);
+			}
+			project(points);
+
+			for (int zoom = 0; zoom <= MAX_ZOOM; zoom++) {
+				if (simplified[zoom] != null) {
+					simplified[zoom] = appendSimplified(simplified[zoom],
+							previousSize, getTolerance((byte) zoom));
+				}
+			}
+		}
+
+		requestRedraw();
+	}
+
+	/**
+	 * @return Number of points of the whole line
+	 */
+	synchronized int getSize() {
+		return size;
+	}
+
+	@Override
+	public synchronized void draw(BoundingBox boundingBox, byte zoomLevel,
+			Canvas canvas, Point topLeftPoint) {
+		if (size < 2) {
+			return;
+		}
+
+		int[] points = getSimplified((byte) Math.min(zoomLevel, MAX_ZOOM));
+		// From the pixels of MAX_ZOOM to the pixels of the current zoom level
+		double scale = (double) displayModel.getTileSize() / GRID_TILE_SIZE
+				* Math.pow(2, zoomLevel - MAX_ZOOM);
+
+		// Visible area, in pixels of MAX_ZOOM
+		double minX = (topLeftPoint.x - CLIP_MARGIN) / scale;
+		double minY = (topLeftPoint.y - CLIP_MARGIN) / scale;
+		double maxX = (topLeftPoint.x + canvas.getWidth() + CLIP_MARGIN)
+				/ scale;
+		double maxY = (topLeftPoint.y + canvas.getHeight() + CLIP_MARGIN)
+				/ scale;
+
+		path.clear();
+		boolean empty = true;
+		boolean drawing = false;
+		for (int i = 1; i < points.length; i++) {
+			int from = points[i - 1];
+			int to = points[i];
+			if (Math.max(pixelsX[from], pixelsX[to]) < minX
+					|| Math.min(pixelsX[from], pixelsX[to]) > maxX
+					|| Math.max(pixelsY[from], pixelsY[to]) < minY
+					|| Math.min(pixelsY[from], pixelsY[to]) > maxY) {
+				drawing = false;
+				continue;
+			}
+
+			if (!drawing) {
+				path.moveTo((float) (pixelsX[from] * scale - topLeftPoint.x),
+						(float) (pixelsY[from] * scale - topLeftPoint.y));
+				drawing = true;
+			}
+			path.lineTo((float) (pixelsX[to] * scale - topLeftPoint.x),
+					(float) (pixelsY[to] * scale - topLeftPoint.y));
+			empty = false;
+		}
+
+		if (!empty) {
+			canvas.drawPath(path, paint);
+		}
+	}
+
+	// Returns the simplified line of a zoom level, computing it the first
+	// time
+	private int[] getSimplified(byte zoom) {
+		if (simplified[zoom] == null) {
+			simplified[zoom] = simplify(pixelsX, pixelsY, 0, size,
+					getTolerance(zoom));
+		}
+		return simplified[zoom];
+	}
+
+	// Extends the simplified line of the points before previousSize with the
+	// appended points. The last kept point before them was only kept because
+	// it was the end of the line, so the line is simplified again from the
+	// previous one
+	private int[] appendSimplified(int[] previous, int previousSize,
+			double tolerance) {
+		int keptBefore = Math.max(previous.length - 2, 0);
+		int from = (keptBefore == 0) ? 0 : previous[keptBefore];
+		int[] tail = simplify(pixelsX, pixelsY, from, size - from, tolerance);
+
+		int[] result = new int[keptBefore + tail.length];
+		System.arraycopy(previous, 0, result, 0, keptBefore);
+		System.arraycopy(tail, 0, result, keptBefore, tail.length);
+		return result;
+	}
+
+	// Half a pixel of a zoom level, in pixels of MAX_ZOOM
+	private static double getTolerance(byte zoom) {
+		return TOLERANCE * (1 << (MAX_ZOOM - zoom));
+	}
+
+	private static void validate(double[] points) {
+		for (int i = 0; i + 1 < points.length; i += 2) {
+			LatLongUtils.validateLatitude(points[i]);
+			LatLongUtils.validateLongitude(points[i + 1]);
+		}
+	}
+
+	// Adds the pixel coordinates of the points after the current ones. The
+	// arrays must have room for them
+	private void project(double[] points) {
+		for (int i = 0; i + 1 < points.length; i += 2) {
+			// The poles are out of the Mercator projection
+			double lat = Math.max(MercatorProjection.LATITUDE_MIN,
+					Math.min(MercatorProjection.LATITUDE_MAX, points[i]));
+			pixelsX[size] = MercatorProjection.longitudeToPixelX(
+					points[i + 1], MAX_ZOOM, GRID_TILE_SIZE);
+			pixelsY[size] = MercatorProjection.latitudeToPixelY(lat, MAX_ZOOM,
+					GRID_TILE_SIZE);
+			size++;
+		}
+	}
+
+	// Douglas-Peucker simplification of count points from offset, without
+	// recursion since tracks may have many thousands of points. Returns the
+	// indexes of the points that are kept, in order
+	private static int[] simplify(double[] xs, double[] ys, int offset,
+			int count, double tolerance) {
+		if (count < 3) {
+			int[] all = new int[count];
+			for (int i = 0; i < count; i++) {
+				all[i] = offset + i;
+			}
+			return all;
+		}
+
+		boolean[] keep = new boolean[count];
+		keep[0] = true;
+		keep[count - 1] = true;
+		int kept = 2;
+		double squaredTolerance = tolerance * tolerance;
+
+		// Ranges of points (first and last index) still to be simplified
+		int[] stack = new int[2 * count];
+		int top = 0;
+		stack[top++] = offset;
+		stack[top++] = offset + count - 1;
+		while (top > 0) {
+			int last = stack[--top];
+			int first = stack[--top];
+
+			double maxDistance = 0;
+			int farthest = -1;
+			for (int i = first + 1; i < last; i++) {
+				double distance = getSquaredDistance(xs[i], ys[i], xs[first],
+						ys[first], xs[last], ys[last]);
+				if (distance > maxDistance) {
+					maxDistance = distance;
+					farthest = i;
+				}
+			}
+
+			if (farthest >= 0 && maxDistance > squaredTolerance) {
+				keep[farthest - offset] = true;
+				kept++;
+				if (farthest - first > 1) {
+					stack[top++] = first;
+					stack[top++] = farthest;
+				}
+				if (last - farthest > 1) {
+					stack[top++] = farthest;
+					stack[top++] = last;
+				}
+			}
+		}
+
+		int[] result = new int[kept];
+		int n = 0;
+		for (int i = 0; i < count; i++) {
+			if (keep[i]) {
+				result[n++] = offset + i;
+			}
+		}
+		return result;
+	}
+
+	// Squared distance from a point to the segment between a and b
+	private static double getSquaredDistance(double x, double y, double ax,
+			double ay, double bx, double by) {
+		double dx = bx - ax;
+		double dy = by - ay;
+		double length = dx * dx + dy * dy;
+		if (length > 0) {
+			double t = ((x - ax) * dx + (y - ay) * dy) / length;
+			if (t > 1) {
+				ax = bx;
+				ay = by;
+			} else if (t > 0) {
+				ax += t * dx;
+				ay += t * dy;
+			}
+		}
+		dx = x - ax;
+		dy = y - ay;
+		return dx * dx + dy * dy;
+	}
+}
@@ -0,0 +1,306 @@
+package com.suarez.cordova.mapsforge;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import android.content.Context;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.res.AssetManager;
+import android.util.Log;
+
+/**
+ * Render themes bundled in the assets of the application, shared by
+ * {@link MapsforgeCache} and {@link MapsforgeNative}.
+ * <p>
+ * Themes given by name (e.g. {@code driving.xml}) are read straight from the
+ * assets, without copying them. The themes are also extracted to the
+ * internal storage, for the apps that use their absolute paths, but only
+ * once per version of the application: a manifest with the checksum of
+ * every file tells which files have changed, so an update only writes those,
+ * and a start with the same version only reads the manifest.
+ *
+ * @author Adolfo Fernandez Suarez
+ * @version 0.1
+ */
+final class ThemeAssets {
+
+	/**
+	 * Directory of the themes, both in the assets and in the internal
+	 * storage.
+	 */
+	static final String DIRECTORY = "renderthemes";
+
+	/**
+	 * Theme used when none is given.
+	 */
+	static final String DEFAULT_THEME = "assets.xml";
+
+	private static final String MANIFEST_FILE = ".manifest";
+	private static final String MANIFEST_MAGIC = "mapsforge-theme-assets 1";
+
+	// Version of the application whose themes have been checked by this
+	// process
+	private static String extractedVersion;
+
+	private ThemeAssets() {
+	}
+
+	/**
+	 * @return Directory of the extracted themes in the internal storage
+	 */
+	static File getDirectory(Context context) {
+		return new File(context.getFilesDir(), DIRECTORY);
+	}
+
+	/**
+	 * Loads a render theme.
+	 *
+	 * @param path
+	 *            Name of a bundled theme (e.g. {@code driving.xml}), which is
+	 *            read from the assets, or absolute path to a theme file
+	 * @return The theme
+	 * @throws FileNotFoundException
+	 *             If the theme does not exist
+	 * @throws IOException
+	 *             If the theme can not be read
+	 */
+	static RenderThemeCache.Theme load(Context context, String path)
+			throws IOException {
+		if (path.contains("/")) {
+			return RenderThemeCache.get(new File(path));
+		}
+		return RenderThemeCache.getAsset(context.getAssets(), DIRECTORY + "/"
+				+ path);
+	}
+
+	/**
+	 * Copies the bundled themes to the internal storage, unless it has
+	 * already been done for this version of the application. Only the files
+	 * whose checksum has changed are written, and the files that are no
+	 * longer bundled are deleted.
+	 *
+	 * @return Directory of the extracted themes
+	 * @throws IOException
+	 *             If the themes can not be copied
+	 */
+	static synchronized File extract(Context context) throws IOException {
+		File directory = getDirectory(context);
+		String version = getAppVersion(context);
+		if (version != null && version.equals(extractedVersion)) {
+			return directory;
+		}
+
+		Map<String, String> previous = new HashMap<String, String>();
+		String previousVersion = readManifest(directory, previous);
+		if (version != null && version.equals(previousVersion)
+				&& allFilesExist(directory, previous)) {
+			extractedVersion = version;
+			return directory;
+		}
+
+		long start = System.currentTimeMillis();
+		Map<String, String> current = new LinkedHashMap<String, String>();
+		int written = extractDirectory(context.getAssets(), DIRECTORY, "",
+				directory, previous, current);
+
+		for (String path : previous.keySet()) {
+			if (!current.containsKey(path)) {
+				new File(directory, path).delete();
+			}
+		}
+		writeManifest(directory, version, current);
+		extractedVersion = version;
+
+		Log.i(MapsforgePlugin.TAG, "Render themes extracted: " + written
+				+ " of " + current.size() + " files written in "
+				+ (System.currentTimeMillis() - start) + " ms");
+		return directory;
+	}
+
+	// Version code and install time of the application, so reinstalls of the
+	// same version are detected too. Null if it is not available
+	private static String getAppVersion(Context context) {
+		try {
+			PackageInfo info = context.getPackageManager().getPackageInfo(
+					context.getPackageName(), 0);
+			return info.versionCode + "-" + info.lastUpdateTime;
+		} catch (PackageManager.NameNotFoundException e) {
+			return null;
+		}
+	}
+
+	// Copies the files of an assets directory whose checksum is not the one
+	// in the previous manifest. Returns the number of files written
+	private static int extractDirectory(AssetManager assets, String assetPath,
+			String relativePath, File directory, Map<String, String> previous,
+			Map<String, String> current) throws IOException {
+		int written = 0;
+		for (String name : assets.list(assetPath)) {
+			String childAsset = assetPath + "/" + name;
+			String childPath = relativePath + name;
+			String[] children = assets.list(childAsset);
+			if (children != null && children.length > 0) {
+				written += extractDirectory(assets, childAsset, childPath + "/",
+						directory, previous, current);
+				continue;
+			}
+
+			byte[] data = readAsset(assets, childAsset);
+			String checksum = getChecksum(data);
+			current.put(childPath, checksum);
+
+			File target = new File(directory, childPath);
+			if (checksum.equals(previous.get(childPath)) && target.isFile()
+					&& target.length() == data.length) {
+				continue;
+			}
+			writeFile(target, data);
+			written++;
+		}
+		return written;
+	}
+
+	private static boolean allFilesExist(File directory,
+			Map<String, String> files) {
+		for (String path : files.keySet()) {
+			if (!new File(directory, path).isFile()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static String getChecksum(byte[] data) {
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, data.length);
+		return Long.toHexString(crc.getValue()) + "-"
+				+ Integer.toHexString(data.length);
+	}
+
+	/**
+	 * @return Content of an asset file
+	 * @throws IOException
+	 */
+	static byte[] readAsset(AssetManager assets, String path)
+			throws IOException {
+		InputStream in = assets.open(path);
+		try {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] buffer = new byte[8192];
+			int read;
+			while ((read = in.read(buffer)) != -1) {
+				out.write(buffer, 0, read);
+			}
+			return out.toByteArray();
+		} finally {
+			in.close();
+		}
+	}
+
+	// Writes a file through a temporary one, so a crash never leaves a theme
+	// half written
+	private static void writeFile(File target, byte[] data) throws IOException {
+		target.getParentFile().mkdirs();
+		File partFile = new File(target.getPath() + ".part");
+		OutputStream out = new FileOutputStream(partFile);
+		try {
+			out.write(data);
+		} finally {
+			out.close();
+		}
+
+		if (!partFile.renameTo(target)) {
+			target.delete();
+			if (!partFile.renameTo(target)) {
+				partFile.delete();
+				throw new IOException("Couldn't extract render theme: "
+						+ target.getAbsolutePath());
+			}
+		}
+	}
+
+	// Reads the manifest into files (path -> checksum). Returns the version
+	// of the application that wrote it, or null if there is no valid
+	// manifest
+	private static String readManifest(File directory, Map<String, String> files) {
+		File manifest = new File(directory, MANIFEST_FILE);
+		if (!manifest.isFile()) {
+			return null;
+		}
+
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(
+					new FileInputStream(manifest), "UTF-8"));
+			if (!MANIFEST_MAGIC.equals(reader.readLine())) {
+				return null;
+			}
+			String version = reader.readLine();
+
+			String line;
+			while ((line = reader.readLine()) != null) {
+				int space = line.indexOf(' ');
+				if (space > 0) {
+					files.put(line.substring(space + 1),
+							line.substring(0, space));
+				}
+			}
+			return version;
+		} catch (IOException e) {
+			Log.w(MapsforgePlugin.TAG, "Couldn't read the themes manifest", e);
+			files.clear();
+			return null;
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					// Nothing else to do
+				}
+			}
+		}
+	}
+
+	private static void writeManifest(File directory, String version,
+			Map<String, String> files) throws IOException {
+		directory.mkdirs();
+		File tmpFile = new File(directory, MANIFEST_FILE + ".part");
+		Writer writer = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(tmpFile), "UTF-8"));
+		try {
+			writer.write(MANIFEST_MAGIC + "\n");
+			// Without a version the manifest is never trusted, only the
+			// checksums are used
+			writer.write(((version == null) ? "" : version) + "\n");
+			for (Map.Entry<String, String> entry : files.entrySet()) {
+				writer.write(entry.getValue() + " " + entry.getKey() + "\n");
+			}
+		} finally {
+			writer.close();
+		}
+
+		File manifest = new File(directory, MANIFEST_FILE);
+		if (!tmpFile.renameTo(manifest)) {
+			manifest.delete();
+			if (!tmpFile.renameTo(manifest)) {
+				tmpFile.delete();
+				throw new IOException("Couldn't write the themes manifest");
+			}
+		}
+	}
+}
@@ -0,0 +1,669 @@
+package com.suarez.cordova.mapsforge;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * Persistent index of the tiles stored in a cache directory. It records the
+ * size, the last access time and the render cost of every tile, so the cache
+ * size is known without walking the directory tree. Tiles of a single color
+ * are recorded with their color instead, since they have no file of their
+ * own, and deduplicated tiles with the hash of the image they share, which
+ * only counts once in the size of the cache.
+ * <p>
+ * The index is kept in memory and every change is appended to a journal
+ * file. When the index is opened the journal is replayed, ignoring any line
+ * that was left incomplete by a crash. If there is no journal (e.g. a cache
+ * created by a previous version of the plugin) the index is rebuilt from the
+ * tiles found by a {@link Scanner}.
+ *
+ * @author Adolfo Fernandez Suarez
+ * @version 0.1
+ */
+class TileCacheIndex {
+
+	/**
+	 * Information kept for every tile in the index.
+	 */
+	static class Entry {
+		final String key;
+		long size;
+		long lastAccess;
+		long renderCost;
+		// Color (ARGB) of a uniform tile, null for the other tiles
+		Integer color;
+		// Hash of the shared image of a deduplicated tile, null for the
+		// other tiles
+		String blob;
+
+		Entry(String key, long size, long lastAccess, long renderCost) {
+			this.key = key;
+			this.size = size;
+			this.lastAccess = lastAccess;
+			this.renderCost = renderCost;
+		}
+	}
+
+	/**
+	 * Lists the tiles stored in the cache directory, to rebuild the index.
+	 */
+	interface Scanner {
+		/**
+		 * @return One entry per tile found. It may be slow
+		 */
+		List<Entry> scan();
+	}
+
+	static final String JOURNAL_FILE = "journal.idx";
+	private static final String JOURNAL_TMP_FILE = "journal.idx.tmp";
+	private static final String MAGIC = "mapsforge-cache-index";
+	private static final String VERSION = "3";
+
+	private static final String PUT = "P";
+	private static final String ACCESS = "A";
+	private static final String REMOVE = "R";
+	// Prefix of the blob hash in the PUT lines, which is written instead of
+	// the color
+	private static final String BLOB_PREFIX = "=";
+
+	// Number of redundant journal lines allowed before it is compacted
+	private static final int COMPACT_THRESHOLD = 2000;
+	// Accessed tiles kept in memory before their access times are written
+	private static final int ACCESS_BATCH_SIZE = 256;
+	// Max time that an access time waits before being written
+	private static final long ACCESS_FLUSH_INTERVAL_MS = 30000;
+
+	private final File directory;
+	private final Scanner scanner;
+	private final File journalFile;
+	// Entries in access order: the first one is the least recently used
+	private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<String, Entry>(
+			16, 0.75f, true);
+	// Entries accessed since their access times were last written, least
+	// recently used first
+	private final LinkedHashSet<Entry> accessedEntries = new LinkedHashSet<Entry>();
+	private long lastAccessWrite = System.currentTimeMillis();
+	private long totalSize;
+	// Size of all the tiles, counting the shared images once per tile
+	private long logicalSize;
+	private int uniformCount;
+	// Number of tiles that use every shared image, by partition/hash, since
+	// every partition stores its own copy of the image
+	private final HashMap<String, Integer> blobReferences = new HashMap<String, Integer>();
+	private int redundantLines;
+	// Set when the journal has lines that could not be parsed
+	private boolean incompleteJournal;
+	private Writer journalWriter;
+
+	/**
+	 * Opens the index of the given cache directory, creating it if necessary.
+	 * If the journal can not be written the index still works, but it will be
+	 * rebuilt the next time it is opened.
+	 *
+	 * @param directory
+	 *            Cache directory, where the journal is written
+	 * @param scanner
+	 *            Lists the stored tiles, used to rebuild the index
+	 */
+	TileCacheIndex(File directory, Scanner scanner) {
+		this.directory = directory;
+		this.scanner = scanner;
+		this.journalFile = new File(directory, JOURNAL_FILE);
+
+		try {
+			if (journalFile.exists() && readJournal()) {
+				// A journal with an incomplete line is rewritten, otherwise
+				// the next line would be appended to it
+				if (incompleteJournal || redundantLines > COMPACT_THRESHOLD) {
+					rewriteJournal();
+				} else {
+					openJournalWriter();
+				}
+			} else {
+				rebuild();
+			}
+		} catch (IOException e) {
+			Log.w(MapsforgePlugin.TAG, "Couldn't write the cache index", e);
+		}
+	}
+
+	/**
+	 * Removes every entry from the index. The files themselves are not
+	 * touched.
+	 */
+	synchronized void clear() {
+		entries.clear();
+		accessedEntries.clear();
+		totalSize = 0;
+		logicalSize = 0;
+		uniformCount = 0;
+		blobReferences.clear();
+		try {
+			rewriteJournal();
+		} catch (IOException e) {
+			Log.w(MapsforgePlugin.TAG, "Couldn't write the cache index", e);
+		}
+	}
+
+	/**
+	 * Closes the journal. The index can not be modified afterwards.
+	 */
+	synchronized void close() {
+		writeAccesses();
+		if (journalWriter != null) {
+			try {
+				journalWriter.close();
+			} catch (IOException e) {
+				Log.w(MapsforgePlugin.TAG, "Couldn't close the cache index", e);
+			}
+			journalWriter = null;
+		}
+	}
+
+	/**
+	 * @param key
+	 *            Tile key
+	 * @return True if the tile is in the index
+	 */
+	synchronized boolean contains(String key) {
+		return entries.containsKey(key);
+	}
+
+	/**
+	 * Writes the pending access times and flushes the journal lines that are
+	 * still buffered.
+	 */
+	synchronized void flush() {
+		writeAccesses();
+		if (journalWriter != null) {
+			try {
+				journalWriter.flush();
+			} catch (IOException e) {
+				Log.w(MapsforgePlugin.TAG, "Couldn't write the cache index", e);
+			}
+		}
+	}
+
+	/**
+	 * @return Number of tiles in the index
+	 */
+	synchronized int getCount() {
+		return entries.size();
+	}
+
+	/**
+	 * @return Sum of the sizes of all the tiles in the index, in bytes
+	 */
+	synchronized long getTotalSize() {
+		return totalSize;
+	}
+
+	/**
+	 * Returns the least recently used entries, without changing their order.
+	 *
+	 * @param count
+	 *            Max number of entries to return
+	 * @return Copy of the entries, least recently used first
+	 */
+	synchronized List<Entry> getLeastRecentlyUsed(int count) {
+		List<Entry> result = new ArrayList<Entry>(Math.min(count,
+				entries.size()));
+		Iterator<Entry> it = entries.values().iterator();
+		while (it.hasNext() && result.size() < count) {
+			Entry entry = it.next();
+			result.add(new Entry(entry.key, entry.size, entry.lastAccess,
+					entry.renderCost));
+		}
+		return result;
+	}
+
+	/**
+	 * Records an access to a tile. The access time is only updated in memory,
+	 * and the access times are written to the journal in batches, one line
+	 * per tile no matter how many times it has been accessed, either when
+	 * there are enough of them or from time to time.
+	 *
+	 * @param key
+	 *            Tile key
+	 * @param time
+	 *            Access time in milliseconds
+	 * @return False if the tile is not in the index
+	 */
+	synchronized boolean recordAccess(String key, long time) {
+		Entry entry = entries.get(key);
+		if (entry == null) {
+			return false;
+		}
+
+		entry.lastAccess = time;
+		// Moved to the end, so they are written in access order
+		accessedEntries.remove(entry);
+		accessedEntries.add(entry);
+		if (accessedEntries.size() >= ACCESS_BATCH_SIZE
+				|| time - lastAccessWrite >= ACCESS_FLUSH_INTERVAL_MS) {
+			writeAccesses();
+		}
+		return true;
+	}
+
+	/**
+	 * Adds a tile to the index, replacing the previous entry if there is one.
+	 *
+	 * @param key
+	 *            Tile key
+	 * @param size
+	 *            Size of the tile in bytes
+	 * @param time
+	 *            Creation time in milliseconds
+	 * @param renderCost
+	 *            Time spent rendering the tile, in milliseconds
+	 */
+	synchronized void recordPut(String key, long size, long time,
+			long renderCost) {
+		put(new Entry(key, size, time, renderCost));
+	}
+
+	/**
+	 * Adds a tile of a single color to the index, replacing the previous
+	 * entry if there is one. It has no size, since it uses the image shared
+	 * by all the tiles of its color.
+	 *
+	 * @param key
+	 *            Tile key
+	 * @param color
+	 *            Color of the tile (ARGB)
+	 * @param time
+	 *            Creation time in milliseconds
+	 * @param renderCost
+	 *            Time spent rendering the tile, in milliseconds
+	 */
+	synchronized void recordUniform(String key, int color, long time,
+			long renderCost) {
+		Entry entry = new Entry(key, 0, time, renderCost);
+		entry.color = color;
+		put(entry);
+	}
+
+	/**
+	 * @return Color (ARGB) of a tile recorded through
+	 *         {@link #recordUniform(String, int, long, long)}, or null if the
+	 *         tile is not in the index or is not uniform
+	 */
+	synchronized Integer getUniformColor(String key) {
+		if (uniformCount == 0) {
+			return null;
+		}
+		Entry entry = entries.get(key);
+		return (entry == null) ? null : entry.color;
+	}
+
+	/**
+	 * Adds a deduplicated tile to the index, replacing the previous entry if
+	 * there is one. Its image is shared with every tile with the same hash,
+	 * so it only adds to the size of the cache if no other tile uses it.
+	 *
+	 * @param key
+	 *            Tile key
+	 * @param blob
+	 *            Hash of the image
+	 * @param size
+	 *            Size of the image in bytes
+	 * @param time
+	 *            Creation time in milliseconds
+	 * @param renderCost
+	 *            Time spent rendering the tile, in milliseconds
+	 */
+	synchronized void recordBlob(String key, String blob, long size,
+			long time, long renderCost) {
+		Entry entry = new Entry(key, size, time, renderCost);
+		entry.blob = blob;
+		put(entry);
+	}
+
+	/**
+	 * @return Hash of the image of a tile recorded through
+	 *         {@link #recordBlob(String, String, long, long, long)}, or null
+	 *         if the tile is not in the index or is not deduplicated
+	 */
+	synchronized String getBlob(String key) {
+		if (blobReferences.isEmpty()) {
+			return null;
+		}
+		Entry entry = entries.get(key);
+		return (entry == null) ? null : entry.blob;
+	}
+
+	/**
+	 * @return True if any tile of the partition uses the image with the given
+	 *         hash
+	 */
+	synchronized boolean isBlobReferenced(String partition, String blob) {
+		return blobReferences.containsKey(partition + "/" + blob);
+	}
+
+	/**
+	 * @return Number of shared images used by the deduplicated tiles
+	 */
+	synchronized int getBlobCount() {
+		return blobReferences.size();
+	}
+
+	/**
+	 * Returns the size that the tiles would use without deduplication. It is
+	 * the same as {@link #getTotalSize()} if there are no deduplicated tiles.
+	 *
+	 * @return The size in bytes
+	 */
+	synchronized long getLogicalSize() {
+		return logicalSize;
+	}
+
+	/**
+	 * @return Number of tiles of a single color in the index
+	 */
+	synchronized int getUniformCount() {
+		return uniformCount;
+	}
+
+	// Adds an entry, replacing the previous one, and writes it to the
+	// journal
+	private void put(Entry entry) {
+		Entry previous = entries.put(entry.key, entry);
+		if (previous != null) {
+			accessedEntries.remove(previous);
+			removeSize(previous);
+			redundantLines++;
+		}
+		addSize(entry);
+
+		appendLine(getPutLine(entry), true);
+		compactIfNeeded();
+	}
+
+	/**
+	 * Removes a tile from the index.
+	 *
+	 * @param key
+	 *            Tile key
+	 * @return The removed entry, or null if the tile was not in the index
+	 */
+	synchronized Entry recordRemove(String key) {
+		Entry previous = entries.remove(key);
+		if (previous != null) {
+			accessedEntries.remove(previous);
+			removeSize(previous);
+			redundantLines += 2;
+			appendLine(REMOVE + " " + key, true);
+			compactIfNeeded();
+		}
+		return previous;
+	}
+
+	// Writes a line to the journal. Lines that change the cache size are
+	// flushed straight away
+	private void appendLine(String line, boolean flush) {
+		if (journalWriter == null) {
+			return;
+		}
+
+		try {
+			journalWriter.write(line);
+			journalWriter.write('\n');
+			if (flush) {
+				journalWriter.flush();
+			}
+		} catch (IOException e) {
+			Log.w(MapsforgePlugin.TAG, "Couldn't write the cache index", e);
+		}
+	}
+
+	// Writes the access times kept in memory to the journal
+	private void writeAccesses() {
+		lastAccessWrite = System.currentTimeMillis();
+		if (accessedEntries.isEmpty()) {
+			return;
+		}
+
+		for (Entry entry : accessedEntries) {
+			appendLine(ACCESS + " " + entry.key + " " + entry.lastAccess, false);
+			redundantLines++;
+		}
+		accessedEntries.clear();
+
+		if (journalWriter != null) {
+			try {
+				journalWriter.flush();
+			} catch (IOException e) {
+				Log.w(MapsforgePlugin.TAG, "Couldn't write the cache index", e);
+			}
+		}
+		compactIfNeeded();
+	}
+
+	private void compactIfNeeded() {
+		if (redundantLines > COMPACT_THRESHOLD
+				&& redundantLines > entries.size()) {
+			try {
+				rewriteJournal();
+			} catch (IOException e) {
+				Log.w(MapsforgePlugin.TAG, "Couldn't compact the cache index",
+						e);
+			}
+		}
+	}
+
+	private void openJournalWriter() throws IOException {
+		journalWriter = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(journalFile, true), "UTF-8"));
+	}
+
+	// Replays the journal. Returns false if it is not a valid journal
+	private boolean readJournal() {
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new InputStreamReader(
+					new FileInputStream(journalFile), "UTF-8"));
+			String header = reader.readLine();
+			if (header == null || !header.equals(MAGIC + " " + VERSION)) {
+				return false;
+			}
+
+			String line;
+			while ((line = reader.readLine()) != null) {
+				replayLine(line);
+			}
+			return true;
+		} catch (IOException e) {
+			Log.w(MapsforgePlugin.TAG, "Couldn't read the cache index", e);
+			entries.clear();
+			totalSize = 0;
+			logicalSize = 0;
+			uniformCount = 0;
+			blobReferences.clear();
+			return false;
+		} finally {
+			if (reader != null) {
+				try {
+					reader.close();
+				} catch (IOException e) {
+					// Nothing else to do
+				}
+			}
+		}
+	}
+
+	private void replayLine(String line) {
+		String[] parts = line.split(" ");
+		try {
+			if (PUT.equals(parts[0])
+					&& (parts.length == 5 || parts.length == 6)) {
+				Entry entry = new Entry(parts[1], Long.parseLong(parts[2]),
+						Long.parseLong(parts[3]), Long.parseLong(parts[4]));
+				if (parts.length == 6 && parts[5].startsWith(BLOB_PREFIX)) {
+					entry.blob = parts[5].substring(BLOB_PREFIX.length());
+				} else if (parts.length == 6) {
+					entry.color = (int) Long.parseLong(parts[5], 16);
+				}
+				Entry previous = entries.put(entry.key, entry);
+				if (previous != null) {
+					removeSize(previous);
+					redundantLines++;
+				}
+				addSize(entry);
+			} else if (ACCESS.equals(parts[0]) && parts.length == 3) {
+				Entry entry = entries.get(parts[1]);
+				if (entry != null) {
+					entry.lastAccess = Long.parseLong(parts[2]);
+				}
+				redundantLines++;
+			} else if (REMOVE.equals(parts[0]) && parts.length == 2) {
+				Entry previous = entries.remove(parts[1]);
+				if (previous != null) {
+					removeSize(previous);
+				}
+				redundantLines += 2;
+			} else {
+				// Incomplete line written before a crash
+				incompleteJournal = true;
+			}
+		} catch (NumberFormatException e) {
+			incompleteJournal = true;
+		}
+	}
+
+	// Adds an entry to the sizes. A shared image only counts in the total
+	// size when its first tile is added
+	private void addSize(Entry entry) {
+		logicalSize += entry.size;
+		if (entry.blob != null) {
+			String reference = getBlobReference(entry);
+			Integer references = blobReferences.get(reference);
+			if (references == null) {
+				totalSize += entry.size;
+				references = 0;
+			}
+			blobReferences.put(reference, references + 1);
+		} else {
+			totalSize += entry.size;
+		}
+		if (entry.color != null) {
+			uniformCount++;
+		}
+	}
+
+	// Removes an entry from the sizes. A shared image only leaves the total
+	// size when its last tile is removed
+	private void removeSize(Entry entry) {
+		logicalSize -= entry.size;
+		if (entry.blob != null) {
+			String reference = getBlobReference(entry);
+			Integer references = blobReferences.get(reference);
+			if (references == null || references <= 1) {
+				blobReferences.remove(reference);
+				totalSize -= entry.size;
+			} else {
+				blobReferences.put(reference, references - 1);
+			}
+		} else {
+			totalSize -= entry.size;
+		}
+		if (entry.color != null) {
+			uniformCount--;
+		}
+	}
+
+	// Key of the shared image of an entry in blobReferences. The tile keys
+	// start with their partition
+	private static String getBlobReference(Entry entry) {
+		return entry.key.substring(0, entry.key.indexOf('/') + 1) + entry.blob;
+	}
+
+	// Journal line that adds an entry. The color is only written for the
+	// uniform tiles, and the hash for the deduplicated ones
+	private static String getPutLine(Entry entry) {
+		String line = PUT + " " + entry.key + " " + entry.size + " "
+				+ entry.lastAccess + " " + entry.renderCost;
+		if (entry.color != null) {
+			line += " " + Integer.toHexString(entry.color);
+		} else if (entry.blob != null) {
+			line += " " + BLOB_PREFIX + entry.blob;
+		}
+		return line;
+	}
+
+	// Builds the index from the tiles found by the scanner
+	private void rebuild() throws IOException {
+		Log.i(MapsforgePlugin.TAG, "Rebuilding cache index: "
+				+ directory.getAbsolutePath());
+		entries.clear();
+		totalSize = 0;
+		logicalSize = 0;
+		uniformCount = 0;
+		blobReferences.clear();
+
+		List<Entry> found = scanner.scan();
+
+		// Insert them from the oldest to the newest, so the access order is
+		// the same as the modification order
+		Collections.sort(found, new Comparator<Entry>() {
+			@Override
+			public int compare(Entry lhs, Entry rhs) {
+				return (lhs.lastAccess < rhs.lastAccess) ? -1
+						: ((lhs.lastAccess == rhs.lastAccess) ? 0 : 1);
+			}
+		});
+		for (Entry entry : found) {
+			entries.put(entry.key, entry);
+			addSize(entry);
+		}
+
+		rewriteJournal();
+	}
+
+	// Writes a journal with one line per entry, replacing the current one
+	private void rewriteJournal() throws IOException {
+		// The new journal has the current access times
+		accessedEntries.clear();
+		close();
+
+		File tmpFile = new File(directory, JOURNAL_TMP_FILE);
+		Writer writer = new BufferedWriter(new OutputStreamWriter(
+				new FileOutputStream(tmpFile), "UTF-8"));
+		try {
+			writer.write(MAGIC + " " + VERSION + "\n");
+			// Iterating the values does not change the access order
+			Iterator<Map.Entry<String, Entry>> it = entries.entrySet()
+					.iterator();
+			while (it.hasNext()) {
+				writer.write(getPutLine(it.next().getValue()) + "\n");
+			}
+		} finally {
+			writer.close();
+		}
+
+		if (!tmpFile.renameTo(journalFile)) {
+			throw new IOException("Couldn't replace the cache index journal");
+		}
+		redundantLines = 0;
+		incompleteJournal = false;
+		openJournalWriter();
+	}
+}
@@ -0,0 +1,351 @@
+package com.suarez.cordova.mapsforge;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.mapsforge.core.graphics.TileBitmap;
+import org.mapsforge.map.android.graphics.AndroidGraphicFactory;
+
+import android.graphics.Bitmap;
+import android.graphics.Bitmap.CompressFormat;
+
+/**
+ * Image format used to encode the tiles of {@link MapsforgeCache}: PNG,
+ * JPEG, WebP or lossless WebP. Every format has an id, such as
+ * {@code jpeg-80}, which names the cache partition of its tiles, since tiles
+ * encoded with different formats (or qualities) are not interchangeable.
+ *
+ * @author Adolfo Fernandez Suarez
+ * @version 0.1
+ */
+class TileFormat {
+
+	/**
+	 * Number of tiles, bytes and time spent encoding them with a format.
+	 */
+	static class Stats {
+		private final AtomicLong tiles = new AtomicLong();
+		private final AtomicLong bytes = new AtomicLong();
+		private final AtomicLong encodeTime = new AtomicLong();
+
+		void record(int size, long time) {
+			tiles.incrementAndGet();
+			bytes.addAndGet(size);
+			encodeTime.addAndGet(time);
+		}
+
+		/**
+		 * @return {@code tiles}, {@code bytes}, {@code encodeTime} (ms) and
+		 *         their averages {@code averageSize} and
+		 *         {@code averageEncodeTime}
+		 * @throws JSONException
+		 */
+		JSONObject toJSON() throws JSONException {
+			long count = tiles.get();
+			JSONObject stats = new JSONObject();
+			stats.put("tiles", count);
+			stats.put("bytes", bytes.get());
+			stats.put("encodeTime", encodeTime.get());
+			stats.put("averageSize", (count == 0) ? 0 : bytes.get() / count);
+			stats.put("averageEncodeTime", (count == 0) ? 0 : (double) encodeTime
+					.get() / count);
+			return stats;
+		}
+	}
+
+	// Default quality of the lossy formats
+	static final int DEFAULT_QUALITY = 80;
+	// PNG level that uses the encoder of the platform
+	static final int DEFAULT_PNG_LEVEL = -1;
+
+	// WEBP_LOSSLESS only exists since API 30. On older devices WEBP with
+	// quality 100 is used, which is as close as they get
+	private static final CompressFormat WEBP_LOSSLESS_FORMAT;
+	static {
+		CompressFormat lossless;
+		try {
+			lossless = CompressFormat.valueOf("WEBP_LOSSLESS");
+		} catch (IllegalArgumentException e) {
+			lossless = CompressFormat.WEBP;
+		}
+		WEBP_LOSSLESS_FORMAT = lossless;
+	}
+
+	private static final byte[] PNG_SIGNATURE = { (byte) 0x89, 'P', 'N', 'G',
+			'\r', '\n', 0x1a, '\n' };
+
+	private final String name;
+	private final int quality;
+
+	/**
+	 * @param name
+	 *            {@link MapsforgeCache#FORMAT_PNG},
+	 *            {@link MapsforgeCache#FORMAT_JPEG},
+	 *            {@link MapsforgeCache#FORMAT_WEBP} or
+	 *            {@link MapsforgeCache#FORMAT_WEBP_LOSSLESS}
+	 * @param quality
+	 *            For PNG, the compression level (0-9, or -1 to use the encoder
+	 *            of the platform). For JPEG and WebP, the quality (0-100).
+	 *            Ignored by lossless WebP
+	 * @throws IllegalArgumentException
+	 *             If the format or the quality are not valid
+	 */
+	TileFormat(String name, int quality) throws IllegalArgumentException {
+		if (MapsforgeCache.FORMAT_PNG.equals(name)) {
+			if (quality < -1 || quality > 9) {
+				throw new IllegalArgumentException("Incorrect PNG level ("
+						+ quality + "), should be between 0 and 9, or -1");
+			}
+		} else if (MapsforgeCache.FORMAT_JPEG.equals(name)
+				|| MapsforgeCache.FORMAT_WEBP.equals(name)) {
+			if (quality < 0 || quality > 100) {
+				throw new IllegalArgumentException("Incorrect quality ("
+						+ quality + "), should be between 0 and 100");
+			}
+		} else if (MapsforgeCache.FORMAT_WEBP_LOSSLESS.equals(name)) {
+			quality = 100;
+		} else {
+			throw new IllegalArgumentException("Unknown tile format (" + name
+					+ "), should be " + MapsforgeCache.FORMAT_PNG + ", "
+					+ MapsforgeCache.FORMAT_JPEG + ", "
+					+ MapsforgeCache.FORMAT_WEBP + " or "
+					+ MapsforgeCache.FORMAT_WEBP_LOSSLESS);
+		}
+
+		this.name = name;
+		this.quality = quality;
+	}
+
+	/**
+	 * Returns the format of the given id.
+	 *
+	 * @param id
+	 *            Id returned by {@link #getId()}
+	 * @return The format. PNG formats get the default level, since the level
+	 *         is not part of the id
+	 * @throws IllegalArgumentException
+	 *             If the id is not valid
+	 */
+	static TileFormat fromId(String id) throws IllegalArgumentException {
+		int dash = id.lastIndexOf('-');
+		if (dash > 0 && !MapsforgeCache.FORMAT_WEBP_LOSSLESS.equals(id)) {
+			try {
+				return new TileFormat(id.substring(0, dash),
+						Integer.parseInt(id.substring(dash + 1)));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Unknown tile format: " + id);
+			}
+		}
+		return new TileFormat(id, MapsforgeCache.FORMAT_PNG.equals(id) ? DEFAULT_PNG_LEVEL
+				: DEFAULT_QUALITY);
+	}
+
+	/**
+	 * Returns the id of the format, which is its name plus the quality for
+	 * the lossy formats, e.g. {@code png}, {@code jpeg-80}, {@code webp-75}
+	 * or {@code webp-lossless}. The PNG level is not included, since it does
+	 * not change the image.
+	 *
+	 * @return The id
+	 */
+	String getId() {
+		if (MapsforgeCache.FORMAT_JPEG.equals(name)
+				|| MapsforgeCache.FORMAT_WEBP.equals(name)) {
+			return name + "-" + quality;
+		}
+		return name;
+	}
+
+	/**
+	 * @return Extension of the files, without dot
+	 */
+	String getExtension() {
+		if (MapsforgeCache.FORMAT_PNG.equals(name)) {
+			return "png";
+		} else if (MapsforgeCache.FORMAT_JPEG.equals(name)) {
+			return "jpg";
+		}
+		return "webp";
+	}
+
+	/**
+	 * @return MIME type of the images
+	 */
+	String getMimeType() {
+		if (MapsforgeCache.FORMAT_PNG.equals(name)) {
+			return "image/png";
+		} else if (MapsforgeCache.FORMAT_JPEG.equals(name)) {
+			return "image/jpeg";
+		}
+		return "image/webp";
+	}
+
+	/**
+	 * @return Name of the format
+	 */
+	String getName() {
+		return name;
+	}
+
+	/**
+	 * @return Quality, or compression level for PNG
+	 */
+	int getQuality() {
+		return quality;
+	}
+
+	/**
+	 * @return Name and quality of the format, e.g. {@code png-6} or
+	 *         {@code jpeg-80}. Unlike {@link #getId()} it includes the PNG
+	 *         level, so the statistics of every level are kept apart
+	 */
+	@Override
+	public String toString() {
+		if (MapsforgeCache.FORMAT_PNG.equals(name)
+				&& quality != DEFAULT_PNG_LEVEL) {
+			return name + "-" + quality;
+		}
+		return getId();
+	}
+
+	/**
+	 * Encodes a rendered tile. The bitmap is not released.
+	 *
+	 * @param bitmap
+	 *            Rendered tile
+	 * @return The encoded image
+	 * @throws IOException
+	 */
+	byte[] encode(TileBitmap bitmap) throws IOException {
+		ByteArrayOutputStream encoded = new ByteArrayOutputStream();
+		if (MapsforgeCache.FORMAT_PNG.equals(name)) {
+			if (quality == DEFAULT_PNG_LEVEL) {
+				bitmap.compress(encoded);
+			} else {
+				// The platform encoder ignores the quality for PNG
+				return encodePng(AndroidGraphicFactory.getBitmap(bitmap),
+						quality);
+			}
+		} else {
+			CompressFormat format;
+			if (MapsforgeCache.FORMAT_JPEG.equals(name)) {
+				format = CompressFormat.JPEG;
+			} else if (MapsforgeCache.FORMAT_WEBP.equals(name)) {
+				format = CompressFormat.WEBP;
+			} else {
+				format = WEBP_LOSSLESS_FORMAT;
+			}
+			if (!AndroidGraphicFactory.getBitmap(bitmap).compress(format,
+					quality, encoded)) {
+				throw new IOException("Couldn't encode tile as " + getId());
+			}
+		}
+		return encoded.toByteArray();
+	}
+
+	// Encodes a bitmap as PNG with the given deflate level. Every row uses
+	// the filter (none, sub or up) that gives the lowest sum of absolute
+	// differences, which usually compresses best
+	private static byte[] encodePng(Bitmap bitmap, int level)
+			throws IOException {
+		int width = bitmap.getWidth();
+		int height = bitmap.getHeight();
+		boolean alpha = bitmap.hasAlpha();
+		int bytesPerPixel = alpha ? 4 : 3;
+		int rowLength = width * bytesPerPixel;
+
+		int[] pixels = new int[width];
+		byte[] previous = new byte[rowLength];
+		byte[] current = new byte[rowLength];
+		byte[] sub = new byte[rowLength];
+		byte[] up = new byte[rowLength];
+
+		ByteArrayOutputStream imageData = new ByteArrayOutputStream();
+		Deflater deflater = new Deflater(level);
+		DeflaterOutputStream deflated = new DeflaterOutputStream(imageData,
+				deflater, 8192);
+		try {
+			for (int y = 0; y < height; y++) {
+				bitmap.getPixels(pixels, 0, width, 0, y, width, 1);
+				for (int x = 0, i = 0; x < width; x++) {
+					int pixel = pixels[x];
+					current[i++] = (byte) (pixel >> 16);
+					current[i++] = (byte) (pixel >> 8);
+					current[i++] = (byte) pixel;
+					if (alpha) {
+						current[i++] = (byte) (pixel >>> 24);
+					}
+				}
+
+				long noneSum = 0, subSum = 0, upSum = 0;
+				for (int i = 0; i < rowLength; i++) {
+					int left = (i >= bytesPerPixel) ? current[i - bytesPerPixel]
+							: 0;
+					sub[i] = (byte) (current[i] - left);
+					up[i] = (byte) (current[i] - previous[i]);
+					noneSum += Math.abs((int) current[i]);
+					subSum += Math.abs((int) sub[i]);
+					upSum += Math.abs((int) up[i]);
+				}
+
+				if (subSum <= noneSum && subSum <= upSum) {
+					deflated.write(1);
+					deflated.write(sub);
+				} else if (upSum <= noneSum) {
+					deflated.write(2);
+					deflated.write(up);
+				} else {
+					deflated.write(0);
+					deflated.write(current);
+				}
+
+				byte[] swap = previous;
+				previous = current;
+				current = swap;
+			}
+			deflated.finish();
+		} finally {
+			deflater.end();
+		}
+
+		ByteArrayOutputStream png = new ByteArrayOutputStream(
+				imageData.size() + 64);
+		DataOutputStream out = new DataOutputStream(png);
+		out.write(PNG_SIGNATURE);
+
+		ByteArrayOutputStream header = new ByteArrayOutputStream(13);
+		DataOutputStream headerOut = new DataOutputStream(header);
+		headerOut.writeInt(width);
+		headerOut.writeInt(height);
+		headerOut.writeByte(8); // Bit depth
+		headerOut.writeByte(alpha ? 6 : 2); // RGBA or RGB
+		headerOut.writeByte(0); // Compression
+		headerOut.writeByte(0); // Filter
+		headerOut.writeByte(0); // No interlace
+		writeChunk(out, "IHDR", header.toByteArray());
+		writeChunk(out, "IDAT", imageData.toByteArray());
+		writeChunk(out, "IEND", new byte[0]);
+		out.flush();
+		return png.toByteArray();
+	}
+
+	private static void writeChunk(DataOutputStream out, String type,
+			byte[] data) throws IOException {
+		byte[] typeBytes = type.getBytes("US-ASCII");
+		CRC32 crc = new CRC32();
+		crc.update(typeBytes);
+		crc.update(data);
+
+		out.writeInt(data.length);
+		out.write(typeBytes);
+		out.write(data);
+		out.writeInt((int) crc.getValue());
+	}
+}
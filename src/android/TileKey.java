@@ -0,0 +1,51 @@
+package com.suarez.cordova.mapsforge;
+
+/**
+ * Immutable identifier of a tile image. Besides the tile coordinates it holds
+ * the partition the image belongs to, since the same tile looks different
+ * when it is rendered with another theme.
+ * 
+ * @author Adolfo Fernandez Suarez
+ * @version 0.1
+ */
+final class TileKey {
+	final String partition;
+	final byte zoom;
+	final long x;
+	final long y;
+
+	TileKey(String partition, byte zoom, long x, long y) {
+		this.partition = partition;
+		this.zoom = zoom;
+		this.x = x;
+		this.y = y;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof TileKey)) {
+			return false;
+		}
+
+		TileKey other = (TileKey) obj;
+		return zoom == other.zoom && x == other.x && y == other.y
+				&& partition.equals(other.partition);
+	}
+
+	@Override
+	public int hashCode() {
+		int result = 31 + partition.hashCode();
+		result = 31 * result + zoom;
+		result = 31 * result + (int) (x ^ (x >>> 32));
+		result = 31 * result + (int) (y ^ (y >>> 32));
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return partition + "/" + zoom + "/" + x + "/" + y;
+	}
+}
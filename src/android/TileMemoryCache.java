@@ -0,0 +1,115 @@
+package com.suarez.cordova.mapsforge;
+
+import android.util.LruCache;
+
+/**
+ * Bounded in-memory tier that sits in front of the disk cache. It keeps the
+ * paths of the tiles served recently, and the encoded images of the tiles
+ * rendered recently, so hot tiles are served without touching the file
+ * system. Entries are evicted in LRU order once the bytes they hold exceed
+ * the maximum size.
+ * 
+ * @author Adolfo Fernandez Suarez
+ * @version 0.1
+ */
+class TileMemoryCache {
+
+	/**
+	 * A tile held in memory. <code>data</code> is null when only the path is
+	 * known.
+	 */
+	static class Entry {
+		final String path;
+		final byte[] data;
+
+		Entry(String path, byte[] data) {
+			this.path = path;
+			this.data = data;
+		}
+
+		// Approximate number of bytes held by this entry
+		int getSize() {
+			int size = 64 + path.length() * 2;
+			if (data != null) {
+				size += data.length;
+			}
+			return size;
+		}
+	}
+
+	private final LruCache<TileKey, Entry> entries;
+	private final int maxSize;
+
+	/**
+	 * @param maxSize
+	 *            Maximum number of bytes held by the cache. With 0 the cache
+	 *            will not keep any tile.
+	 */
+	TileMemoryCache(int maxSize) {
+		this.maxSize = (maxSize < 0) ? 0 : maxSize;
+		this.entries = new LruCache<TileKey, Entry>(Math.max(this.maxSize, 1)) {
+			@Override
+			protected int sizeOf(TileKey key, Entry entry) {
+				return entry.getSize();
+			}
+		};
+	}
+
+	/**
+	 * Removes all the tiles from memory.
+	 */
+	void clear() {
+		entries.evictAll();
+	}
+
+	/**
+	 * @param key
+	 *            Tile to look for
+	 * @return The tile, or null if it is not in memory
+	 */
+	Entry get(TileKey key) {
+		if (maxSize == 0) {
+			return null;
+		}
+		return entries.get(key);
+	}
+
+	/**
+	 * @return Maximum number of bytes held by the cache
+	 */
+	int getMaxSize() {
+		return maxSize;
+	}
+
+	/**
+	 * Keeps a tile in memory.
+	 * 
+	 * @param key
+	 *            Tile identifier
+	 * @param path
+	 *            Absolute path of the tile image
+	 * @param data
+	 *            Encoded image, or null to keep only the path
+	 */
+	void put(TileKey key, String path, byte[] data) {
+		if (maxSize == 0) {
+			return;
+		}
+
+		Entry entry = new Entry(path, data);
+		if (entry.getSize() > maxSize) {
+			entry = new Entry(path, null);
+		}
+		entries.put(key, entry);
+	}
+
+	/**
+	 * Removes a tile from memory.
+	 * 
+	 * @param key
+	 *            Tile identifier
+	 */
+	void remove(TileKey key) {
+		entries.remove(key);
+	}
+}
@@ -0,0 +1,232 @@
+package com.suarez.cordova.mapsforge;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.mapsforge.core.util.MercatorProjection;
+
+/**
+ * Runs tile requests by priority instead of in arrival order. Once the
+ * viewport is known, the tiles closest to its center go first and the tiles
+ * outside the viewport go behind all the visible ones. When the viewport
+ * changes to another zoom level, the queued tiles of the previous level are
+ * dropped, since they will not be shown.
+ * <p>
+ * Without a viewport the requests run in arrival order.
+ *
+ * @author Adolfo Fernandez Suarez
+ * @version 0.1
+ */
+class TileRequestScheduler {
+
+	/**
+	 * A tile request. Exactly one of its methods is called.
+	 */
+	interface Callback {
+		/**
+		 * Serves the request. Called from one of the scheduler threads.
+		 */
+		void run();
+
+		/**
+		 * Called instead of {@link #run()} when the request is dropped
+		 * because it is no longer needed.
+		 */
+		void dropped();
+	}
+
+	// Queued request, ordered by priority and then by arrival
+	private static class Request implements Runnable, Comparable<Request> {
+		final byte zoom;
+		final long x;
+		final long y;
+		final long sequence;
+		final Callback callback;
+		double priority;
+
+		Request(byte zoom, long x, long y, long sequence, Callback callback) {
+			this.zoom = zoom;
+			this.x = x;
+			this.y = y;
+			this.sequence = sequence;
+			this.callback = callback;
+		}
+
+		@Override
+		public void run() {
+			callback.run();
+		}
+
+		@Override
+		public int compareTo(Request another) {
+			if (priority != another.priority) {
+				return (priority < another.priority) ? -1 : 1;
+			}
+			return (sequence < another.sequence) ? -1
+					: ((sequence == another.sequence) ? 0 : 1);
+		}
+	}
+
+	// Immutable viewport, in tiles
+	private static class Viewport {
+		final byte zoom;
+		final long minX, minY, maxX, maxY;
+		final double centerX, centerY;
+
+		Viewport(byte zoom, long minX, long minY, long maxX, long maxY) {
+			this.zoom = zoom;
+			this.minX = minX;
+			this.minY = minY;
+			this.maxX = maxX;
+			this.maxY = maxY;
+			this.centerX = (minX + maxX) / 2d;
+			this.centerY = (minY + maxY) / 2d;
+		}
+
+		boolean contains(long x, long y) {
+			return x >= minX && x <= maxX && y >= minY && y <= maxY;
+		}
+	}
+
+	// Added to the priority of the tiles outside the viewport, so they go
+	// behind all the visible ones
+	private static final double OUTSIDE_PENALTY = 1e12;
+
+	private final ThreadPoolExecutor executor;
+	private final PriorityBlockingQueue<Runnable> queue = new PriorityBlockingQueue<Runnable>();
+	private final AtomicLong sequence = new AtomicLong();
+	private volatile Viewport viewport;
+
+	/**
+	 * Creates a scheduler with the given number of threads.
+	 *
+	 * @param threads
+	 *            Number of requests served at the same time
+	 */
+	TileRequestScheduler(int threads) {
+		threads = Math.max(1, threads);
+		executor = new ThreadPoolExecutor(threads, threads, 30,
+				TimeUnit.SECONDS, queue, new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "mapsforge-tile-request");
+						thread.setDaemon(true);
+						return thread;
+					}
+				});
+		// Idle threads are released
+		executor.allowCoreThreadTimeOut(true);
+	}
+
+	/**
+	 * Queues a tile request.
+	 *
+	 * @param callback
+	 *            Serves the request
+	 */
+	void submit(byte zoom, long x, long y, Callback callback) {
+		Request request = new Request(zoom, x, y, sequence.getAndIncrement(),
+				callback);
+		request.priority = getPriority(request, viewport);
+		executor.execute(request);
+	}
+
+	/**
+	 * Sets the area that is being shown, and sorts the queued requests
+	 * according to it.
+	 *
+	 * @param minLat
+	 *            South bound
+	 * @param minLng
+	 *            West bound
+	 * @param maxLat
+	 *            North bound
+	 * @param maxLng
+	 *            East bound
+	 * @param zoom
+	 *            Zoom level shown
+	 */
+	void setViewport(double minLat, double minLng, double maxLat,
+			double maxLng, byte zoom) {
+		minLat = Math.max(minLat, MercatorProjection.LATITUDE_MIN);
+		maxLat = Math.min(maxLat, MercatorProjection.LATITUDE_MAX);
+		long maxTile = (1L << zoom) - 1;
+
+		Viewport current = new Viewport(zoom, clamp(
+				MercatorProjection.longitudeToTileX(minLng, zoom), maxTile),
+				clamp(MercatorProjection.latitudeToTileY(maxLat, zoom),
+						maxTile), clamp(
+						MercatorProjection.longitudeToTileX(maxLng, zoom),
+						maxTile), clamp(
+						MercatorProjection.latitudeToTileY(minLat, zoom),
+						maxTile));
+		viewport = current;
+
+		// Priorities can not change while the requests are in the queue, so
+		// they are taken out and queued again
+		List<Runnable> queued = new ArrayList<Runnable>();
+		queue.drainTo(queued);
+		for (Runnable runnable : queued) {
+			Request request = (Request) runnable;
+			if (request.zoom != current.zoom) {
+				request.callback.dropped();
+			} else {
+				request.priority = getPriority(request, current);
+				queue.offer(request);
+			}
+		}
+	}
+
+	/**
+	 * Changes the number of requests served at the same time.
+	 *
+	 * @param threads
+	 *            Number of threads
+	 */
+	void setThreads(int threads) {
+		threads = Math.max(1, threads);
+		if (threads > executor.getMaximumPoolSize()) {
+			executor.setMaximumPoolSize(threads);
+			executor.setCorePoolSize(threads);
+		} else {
+			executor.setCorePoolSize(threads);
+			executor.setMaximumPoolSize(threads);
+		}
+	}
+
+	/**
+	 * Stops the threads. The queued requests are dropped, and no more
+	 * requests can be submitted.
+	 */
+	void shutdown() {
+		for (Runnable runnable : executor.shutdownNow()) {
+			((Request) runnable).callback.dropped();
+		}
+	}
+
+	// Squared distance, in tiles, to the center of the viewport. Tiles of
+	// another zoom level (e.g. requested before the new viewport arrives) go
+	// after the tiles outside the viewport
+	private static double getPriority(Request request, Viewport current) {
+		if (current == null) {
+			return 0;
+		} else if (request.zoom != current.zoom) {
+			return OUTSIDE_PENALTY * 2;
+		}
+
+		double dx = request.x - current.centerX;
+		double dy = request.y - current.centerY;
+		double distance = dx * dx + dy * dy;
+		return current.contains(request.x, request.y) ? distance
+				: OUTSIDE_PENALTY + distance;
+	}
+
+	private static long clamp(long tile, long maxTile) {
+		return Math.max(0, Math.min(tile, maxTile));
+	}
+}
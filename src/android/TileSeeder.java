@@ -0,0 +1,375 @@
+package com.suarez.cordova.mapsforge;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.mapsforge.core.util.MercatorProjection;
+
+import android.util.Log;
+
+/**
+ * Renders in the background every missing tile of a region, for a range of
+ * zoom levels, so the region can be used later without rendering delays.
+ * <p>
+ * All the seedings share all the renderers of the cache but one, which is
+ * left for the tiles requested by the map, so they never delay them.
+ * The seeding can be paused, resumed and cancelled at any moment, and it stops
+ * by itself when the cache gets close to its size limit, so the cleaning of
+ * the cache does not delete the tiles that have just been seeded.
+ *
+ * @author Adolfo Fernandez Suarez
+ * @version 0.1
+ */
+class TileSeeder {
+
+	/**
+	 * Receives the progress of a seeding.
+	 */
+	interface Listener {
+		/**
+		 * Called from time to time while the seeding is running, when it is
+		 * paused or resumed, and once when it finishes.
+		 *
+		 * @param seeder
+		 *            The seeder, {@link TileSeeder#isFinished()} tells whether this is
+		 *            the last call
+		 */
+		void onProgress(TileSeeder seeder);
+	}
+
+	static final String STATUS_RUNNING = "running";
+	static final String STATUS_PAUSED = "paused";
+	static final String STATUS_DONE = "done";
+	static final String STATUS_CANCELLED = "cancelled";
+	// The cache has no room for more tiles
+	static final String STATUS_QUOTA = "quota";
+
+	// Min time between two progress reports
+	private static final long PROGRESS_INTERVAL_MS = 500;
+
+	private final int id;
+	private final MapsforgeCache cache;
+	private final Listener listener;
+	private final ExecutorService executor;
+
+	// Tile range of the region for every zoom level
+	private final byte minZoom;
+	private final byte maxZoom;
+	private final long[] minX, maxX, minY, maxY;
+	private final long total;
+
+	// Next tile to seed
+	private byte zoom;
+	private long x, y;
+	private boolean exhausted;
+
+	private final Object lock = new Object();
+	private String status = STATUS_RUNNING;
+	private boolean paused;
+	private boolean stopped;
+	private boolean finished;
+	private long lastReport;
+	private boolean finalReported;
+
+	private final AtomicInteger activeWorkers;
+	private final AtomicLong done = new AtomicLong();
+	private final AtomicLong rendered = new AtomicLong();
+	private final AtomicLong skipped = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+
+	/**
+	 * Creates a seeder for the tiles inside the given bounds. It does not
+	 * start until {@link #start()} is called.
+	 *
+	 * @param id
+	 *            Identifier of the seeding
+	 * @param cache
+	 *            Cache where the tiles are stored
+	 * @param minLat
+	 *            South bound
+	 * @param minLng
+	 *            West bound
+	 * @param maxLat
+	 *            North bound
+	 * @param maxLng
+	 *            East bound
+	 * @param minZoom
+	 *            First zoom level to seed
+	 * @param maxZoom
+	 *            Last zoom level to seed
+	 * @param listener
+	 *            Receives the progress
+	 * @throws IllegalArgumentException
+	 *             If the bounds or the zoom range are not valid
+	 */
+	TileSeeder(int id, MapsforgeCache cache, double minLat, double minLng,
+			double maxLat, double maxLng, byte minZoom, byte maxZoom,
+			Listener listener) throws IllegalArgumentException {
+		if (minLat > maxLat || minLng > maxLng) {
+			throw new IllegalArgumentException("Incorrect bounds: [" + minLat
+					+ ", " + minLng + ", " + maxLat + ", " + maxLng + "]");
+		}
+		if (minZoom < 0 || minZoom > maxZoom) {
+			throw new IllegalArgumentException("Incorrect zoom range: "
+					+ minZoom + " - " + maxZoom);
+		}
+
+		this.id = id;
+		this.cache = cache;
+		this.listener = listener;
+		this.minZoom = minZoom;
+		this.maxZoom = maxZoom;
+
+		minLat = Math.max(minLat, MercatorProjection.LATITUDE_MIN);
+		maxLat = Math.min(maxLat, MercatorProjection.LATITUDE_MAX);
+
+		int levels = maxZoom - minZoom + 1;
+		minX = new long[levels];
+		maxX = new long[levels];
+		minY = new long[levels];
+		maxY = new long[levels];
+		long count = 0;
+		for (int i = 0; i < levels; i++) {
+			byte z = (byte) (minZoom + i);
+			long maxTile = (1L << z) - 1;
+			minX[i] = clamp(MercatorProjection.longitudeToTileX(minLng, z),
+					maxTile);
+			maxX[i] = clamp(MercatorProjection.longitudeToTileX(maxLng, z),
+					maxTile);
+			// Tile rows grow to the south
+			minY[i] = clamp(MercatorProjection.latitudeToTileY(maxLat, z),
+					maxTile);
+			maxY[i] = clamp(MercatorProjection.latitudeToTileY(minLat, z),
+					maxTile);
+			count += (maxX[i] - minX[i] + 1) * (maxY[i] - minY[i] + 1);
+		}
+		this.total = count;
+
+		this.zoom = minZoom;
+		this.x = minX[0];
+		this.y = minY[0];
+
+		int workers = cache.getSeedingRendererCount();
+		this.activeWorkers = new AtomicInteger(workers);
+		this.executor = Executors.newFixedThreadPool(workers,
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						Thread thread = new Thread(r, "mapsforge-seeder");
+						thread.setDaemon(true);
+						thread.setPriority(Thread.MIN_PRIORITY);
+						return thread;
+					}
+				});
+	}
+
+	/**
+	 * Starts seeding in the background.
+	 */
+	void start() {
+		report(true);
+
+		int workers = activeWorkers.get();
+		for (int i = 0; i < workers; i++) {
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					seed();
+				}
+			});
+		}
+		executor.shutdown();
+	}
+
+	/**
+	 * Stops the seeding. The tiles being rendered at this moment are finished
+	 * and stored.
+	 */
+	void cancel() {
+		stop(STATUS_CANCELLED);
+	}
+
+	/**
+	 * Pauses the seeding once the tiles being rendered at this moment are
+	 * finished.
+	 */
+	void pause() {
+		synchronized (lock) {
+			if (stopped || paused) {
+				return;
+			}
+			paused = true;
+			status = STATUS_PAUSED;
+		}
+		report(true);
+	}
+
+	/**
+	 * Resumes a paused seeding.
+	 */
+	void resume() {
+		synchronized (lock) {
+			if (stopped || !paused) {
+				return;
+			}
+			paused = false;
+			status = STATUS_RUNNING;
+			lock.notifyAll();
+		}
+		report(true);
+	}
+
+	/**
+	 * @return Identifier of the seeding
+	 */
+	int getId() {
+		return id;
+	}
+
+	/**
+	 * @return True once all the workers have stopped
+	 */
+	boolean isFinished() {
+		synchronized (lock) {
+			return finished;
+		}
+	}
+
+	/**
+	 * Returns the progress of the seeding: {@code id}, {@code status},
+	 * {@code total} tiles, tiles {@code done}, and how many of them were
+	 * {@code rendered}, {@code skipped} (already in the cache) or
+	 * {@code failed}.
+	 *
+	 * @return The progress
+	 * @throws JSONException
+	 */
+	JSONObject getProgress() throws JSONException {
+		JSONObject progress = new JSONObject();
+		progress.put("id", id);
+		synchronized (lock) {
+			progress.put("status", status);
+		}
+		progress.put("total", total);
+		progress.put("done", done.get());
+		progress.put("rendered", rendered.get());
+		progress.put("skipped", skipped.get());
+		progress.put("failed", failed.get());
+		return progress;
+	}
+
+	// Loop of every worker thread
+	private void seed() {
+		try {
+			long[] tile;
+			while (awaitRunning() && (tile = nextTile()) != null) {
+				if (!cache.hasRoomForSeeding()) {
+					stop(STATUS_QUOTA);
+					break;
+				}
+
+				try {
+					if (cache.seedTile(tile[1], tile[2], (byte) tile[0])) {
+						rendered.incrementAndGet();
+					} else {
+						skipped.incrementAndGet();
+					}
+				} catch (Exception e) {
+					failed.incrementAndGet();
+					Log.w(MapsforgePlugin.TAG, "Couldn't seed tile " + tile[0]
+							+ "/" + tile[1] + "/" + tile[2], e);
+				}
+				done.incrementAndGet();
+				report(false);
+			}
+		} finally {
+			if (activeWorkers.decrementAndGet() == 0) {
+				synchronized (lock) {
+					if (!stopped) {
+						stopped = true;
+						status = STATUS_DONE;
+					}
+					finished = true;
+				}
+				report(true);
+			}
+		}
+	}
+
+	// Waits while the seeding is paused. Returns false if it has been stopped
+	private boolean awaitRunning() {
+		synchronized (lock) {
+			while (paused && !stopped) {
+				try {
+					lock.wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					return false;
+				}
+			}
+			return !stopped;
+		}
+	}
+
+	// Returns the next tile as {zoom, x, y}, or null if there are no more
+	private long[] nextTile() {
+		synchronized (lock) {
+			if (exhausted) {
+				return null;
+			}
+
+			long[] tile = { zoom, x, y };
+
+			int level = zoom - minZoom;
+			if (x < maxX[level]) {
+				x++;
+			} else if (y < maxY[level]) {
+				x = minX[level];
+				y++;
+			} else if (zoom < maxZoom) {
+				zoom++;
+				x = minX[level + 1];
+				y = minY[level + 1];
+			} else {
+				exhausted = true;
+			}
+			return tile;
+		}
+	}
+
+	private void stop(String reason) {
+		synchronized (lock) {
+			if (stopped) {
+				return;
+			}
+			stopped = true;
+			status = reason;
+			lock.notifyAll();
+		}
+	}
+
+	// Sends the progress to the listener. Unless forced, it is sent at most
+	// once every PROGRESS_INTERVAL_MS. It is sent inside the lock so the
+	// reports arrive in order, and nothing is sent after the last one
+	private void report(boolean force) {
+		long now = System.currentTimeMillis();
+		synchronized (lock) {
+			if (finalReported
+					|| (!force && now - lastReport < PROGRESS_INTERVAL_MS)) {
+				return;
+			}
+			lastReport = now;
+			finalReported = finished;
+			listener.onProgress(this);
+		}
+	}
+
+	private static long clamp(long tile, long maxTile) {
+		return Math.max(0, Math.min(tile, maxTile));
+	}
+}
@@ -0,0 +1,457 @@
+package com.suarez.cordova.mapsforge;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Minimal HTTP/1.1 server that serves tiles on the loopback interface, with
+ * URLs like {@code http://127.0.0.1:port/{z}/{x}/{y}.png}, where the
+ * extension is the one of the current tile format. It allows web libraries
+ * to load the tiles as any other online tile layer.
+ * <p>
+ * Connections are kept alive, every connection is served by its own thread,
+ * and responses carry an ETag so unchanged tiles are answered with
+ * <i>304 Not Modified</i>. Up to {@link #MAX_CONNECTIONS} connections are
+ * served at the same time. When a new one arrives beyond that limit an idle
+ * kept alive connection is closed to make room for it, and the busy ones are
+ * closed after their current response while it waits. If too many
+ * connections are already waiting it is answered with
+ * <i>503 Service Unavailable</i>. It only depends on the Java runtime, so it
+ * can be tested out of Android with any HTTP client.
+ *
+ * @author Adolfo Fernandez Suarez
+ * @version 0.1
+ */
+class TileServer {
+
+	/**
+	 * Provides the images served by {@link TileServer}.
+	 */
+	interface TileSource {
+		/**
+		 * @return Encoded image of the tile, or null if it does not exist
+		 * @throws IOException
+		 */
+		byte[] getTile(byte zoom, long x, long y) throws IOException;
+
+		/**
+		 * @return MIME type of the images
+		 */
+		String getContentType();
+
+		/**
+		 * @return Extension of the images in the URLs, without dot
+		 */
+		String getExtension();
+	}
+
+	/**
+	 * Connections served at the same time.
+	 */
+	static final int MAX_CONNECTIONS = 16;
+
+	// Idle time after which a kept alive connection is closed
+	private static final int KEEP_ALIVE_TIMEOUT_MS = 15000;
+	// Connections waiting for a thread before new ones get a 503
+	private static final int MAX_WAITING_CONNECTIONS = 16;
+	private static final int MAX_LINE_LENGTH = 8192;
+	// Wait after a failed accept, doubled on every failure in a row
+	private static final long MIN_ACCEPT_BACKOFF_MS = 50;
+	private static final long MAX_ACCEPT_BACKOFF_MS = 2000;
+	// Time given to a rejected connection to send its request
+	private static final int REJECT_READ_TIMEOUT_MS = 100;
+
+	private final TileSource source;
+	private final ServerSocket serverSocket;
+	private final ThreadPoolExecutor connectionExecutor;
+	// Open connections, and whether they are idle, waiting for a request
+	private final ConcurrentHashMap<Socket, Boolean> connections = new ConcurrentHashMap<Socket, Boolean>();
+	private final Thread acceptThread;
+	private volatile boolean running = true;
+
+	/**
+	 * Starts a server on the loopback interface.
+	 *
+	 * @param source
+	 *            Provider of the tiles
+	 * @param port
+	 *            Port to listen on, or 0 to use any free port
+	 * @throws IOException
+	 *             If the port can not be opened
+	 */
+	TileServer(TileSource source, int port) throws IOException {
+		this.source = source;
+		this.serverSocket = new ServerSocket(port, 50,
+				InetAddress.getByName("127.0.0.1"));
+
+		ThreadFactory threadFactory = new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "mapsforge-tile-server");
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+		this.connectionExecutor = new ThreadPoolExecutor(MAX_CONNECTIONS,
+				MAX_CONNECTIONS, 60, TimeUnit.SECONDS,
+				new ArrayBlockingQueue<Runnable>(MAX_WAITING_CONNECTIONS),
+				threadFactory);
+		this.connectionExecutor.allowCoreThreadTimeOut(true);
+
+		this.acceptThread = threadFactory.newThread(new Runnable() {
+			@Override
+			public void run() {
+				acceptConnections();
+			}
+		});
+		this.acceptThread.start();
+	}
+
+	/**
+	 * @return Port the server is listening on
+	 */
+	int getPort() {
+		return serverSocket.getLocalPort();
+	}
+
+	/**
+	 * @return URL template for the tiles, e.g.
+	 *         {@code http://127.0.0.1:8080/{z}/{x}/{y}.png}. It changes with
+	 *         the extension of the source
+	 */
+	String getUrlTemplate() {
+		return "http://127.0.0.1:" + getPort() + "/{z}/{x}/{y}."
+				+ source.getExtension();
+	}
+
+	/**
+	 * @return True until the server is stopped
+	 */
+	boolean isRunning() {
+		return running;
+	}
+
+	/**
+	 * Stops the server and closes all its connections.
+	 */
+	void stop() {
+		running = false;
+		closeQuietly(serverSocket);
+		for (Socket socket : connections.keySet()) {
+			closeQuietly(socket);
+		}
+		connectionExecutor.shutdownNow();
+	}
+
+	private void acceptConnections() {
+		long backoff = MIN_ACCEPT_BACKOFF_MS;
+		while (running) {
+			final Socket socket;
+			try {
+				socket = serverSocket.accept();
+				socket.setSoTimeout(KEEP_ALIVE_TIMEOUT_MS);
+				socket.setTcpNoDelay(true);
+				backoff = MIN_ACCEPT_BACKOFF_MS;
+			} catch (IOException e) {
+				// The server socket is closed when the server stops. Other
+				// errors (e.g. no file descriptors left) may repeat at once,
+				// so wait a little before trying again
+				if (!running) {
+					break;
+				}
+				try {
+					Thread.sleep(backoff);
+				} catch (InterruptedException ie) {
+					break;
+				}
+				backoff = Math.min(backoff * 2, MAX_ACCEPT_BACKOFF_MS);
+				continue;
+			}
+
+			connections.put(socket, Boolean.FALSE);
+			if (connections.size() > MAX_CONNECTIONS) {
+				closeIdleConnection();
+			}
+			try {
+				connectionExecutor.execute(new Runnable() {
+					@Override
+					public void run() {
+						serveConnection(socket);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				// Too many connections waiting, or the server is stopped
+				connections.remove(socket);
+				rejectConnection(socket);
+			}
+		}
+	}
+
+	// Closes a kept alive connection that is waiting for a request, so its
+	// thread can serve a new connection
+	private void closeIdleConnection() {
+		for (Map.Entry<Socket, Boolean> connection : connections.entrySet()) {
+			if (connection.getValue()
+					&& connections.replace(connection.getKey(), Boolean.TRUE,
+							Boolean.FALSE)) {
+				closeQuietly(connection.getKey());
+				return;
+			}
+		}
+	}
+
+	// Answers a connection that can not be served with a 503 and closes it.
+	// The request is read first, since closing a socket with unread data
+	// resets it and the client would not get the response
+	private void rejectConnection(Socket socket) {
+		try {
+			socket.setSoTimeout(REJECT_READ_TIMEOUT_MS);
+			InputStream in = socket.getInputStream();
+			String line;
+			while ((line = readLine(in)) != null && line.length() > 0) {
+				// Headers of the rejected request
+			}
+		} catch (IOException e) {
+			// Answered anyway
+		}
+
+		try {
+			OutputStream out = socket.getOutputStream();
+			out.write(("HTTP/1.1 503 Service Unavailable\r\n"
+					+ "Retry-After: 1\r\n" + "Content-Length: 0\r\n"
+					+ "Connection: close\r\n\r\n").getBytes("US-ASCII"));
+			out.flush();
+		} catch (IOException e) {
+			// The connection is closed anyway
+		} finally {
+			closeQuietly(socket);
+		}
+	}
+
+	private void serveConnection(Socket socket) {
+		try {
+			InputStream in = new BufferedInputStream(socket.getInputStream());
+			OutputStream out = new BufferedOutputStream(
+					socket.getOutputStream());
+
+			boolean keepAlive = true;
+			boolean served = false;
+			while (keepAlive && running) {
+				// Once a request has been served, the connection may be
+				// closed by closeIdleConnection while it waits for the next
+				if (served) {
+					connections.replace(socket, Boolean.FALSE, Boolean.TRUE);
+				}
+				String requestLine = readLine(in);
+				if (requestLine == null
+						|| (served && !connections.replace(socket,
+								Boolean.TRUE, Boolean.FALSE))) {
+					break;
+				}
+				if (requestLine.length() == 0) {
+					continue;
+				}
+
+				Map<String, String> headers = new HashMap<String, String>();
+				String line;
+				while ((line = readLine(in)) != null && line.length() > 0) {
+					int colon = line.indexOf(':');
+					if (colon > 0) {
+						headers.put(line.substring(0, colon).trim()
+								.toLowerCase(Locale.US), line.substring(colon + 1)
+								.trim());
+					}
+				}
+				if (line == null) {
+					break;
+				}
+
+				String[] parts = requestLine.split(" ");
+				String connection = headers.get("connection");
+				// Connections are not kept alive while others are waiting
+				// for a thread
+				keepAlive = parts.length == 3
+						&& !"close".equalsIgnoreCase(connection)
+						&& ("HTTP/1.1".equals(parts[2]) || "keep-alive"
+								.equalsIgnoreCase(connection))
+						&& connectionExecutor.getQueue().isEmpty();
+
+				if (parts.length != 3) {
+					writeResponse(out, 400, "Bad Request", null, null, false,
+							false);
+				} else {
+					handleRequest(out, parts[0], parts[1],
+							headers.get("if-none-match"), keepAlive);
+				}
+				out.flush();
+				served = true;
+			}
+		} catch (SocketTimeoutException e) {
+			// Idle connection
+		} catch (SocketException e) {
+			// Connection closed by the client or by stop()
+		} catch (IOException e) {
+			// Broken connection
+		} finally {
+			connections.remove(socket);
+			closeQuietly(socket);
+		}
+	}
+
+	private void handleRequest(OutputStream out, String method, String path,
+			String ifNoneMatch, boolean keepAlive) throws IOException {
+		boolean head = "HEAD".equals(method);
+		if (!head && !"GET".equals(method)) {
+			writeResponse(out, 405, "Method Not Allowed", null, null, false,
+					keepAlive);
+			return;
+		}
+
+		// Expected path: /{z}/{x}/{y}.{extension}, query string ignored. The
+		// extension may be left out
+		int query = path.indexOf('?');
+		if (query >= 0) {
+			path = path.substring(0, query);
+		}
+		String[] segments = path.split("/");
+		byte zoom;
+		long x, y;
+		try {
+			if (segments.length != 4 || segments[0].length() != 0) {
+				throw new NumberFormatException(path);
+			}
+			int dot = segments[3].indexOf('.');
+			if (dot >= 0
+					&& !segments[3].substring(dot + 1).equalsIgnoreCase(
+							source.getExtension())) {
+				throw new NumberFormatException(path);
+			}
+			zoom = Byte.parseByte(segments[1]);
+			x = Long.parseLong(segments[2]);
+			y = Long.parseLong((dot < 0) ? segments[3] : segments[3]
+					.substring(0, dot));
+		} catch (NumberFormatException e) {
+			writeResponse(out, 404, "Not Found", null, null, head, keepAlive);
+			return;
+		}
+		if (!MapsforgeCache.isValidTile(zoom, x, y)) {
+			writeResponse(out, 404, "Not Found", null, null, head, keepAlive);
+			return;
+		}
+
+		byte[] data;
+		try {
+			data = source.getTile(zoom, x, y);
+		} catch (FileNotFoundException e) {
+			data = null;
+		} catch (Exception e) {
+			writeResponse(out, 500, "Internal Server Error", null, null, head,
+					keepAlive);
+			return;
+		}
+
+		if (data == null) {
+			writeResponse(out, 404, "Not Found", null, null, head, keepAlive);
+			return;
+		}
+
+		String etag = getETag(data);
+		if (etag.equals(ifNoneMatch)) {
+			writeResponse(out, 304, "Not Modified", etag, null, head,
+					keepAlive);
+		} else {
+			writeResponse(out, 200, "OK", etag, data, head, keepAlive);
+		}
+	}
+
+	private void writeResponse(OutputStream out, int status, String reason,
+			String etag, byte[] body, boolean head, boolean keepAlive)
+			throws IOException {
+		StringBuilder response = new StringBuilder();
+		response.append("HTTP/1.1 ").append(status).append(' ').append(reason)
+				.append("\r\n");
+		response.append("Access-Control-Allow-Origin: *\r\n");
+		response.append("Cache-Control: no-cache\r\n");
+		if (etag != null) {
+			response.append("ETag: ").append(etag).append("\r\n");
+		}
+		if (body != null) {
+			response.append("Content-Type: ").append(source.getContentType())
+					.append("\r\n");
+		}
+		if (status != 304) {
+			response.append("Content-Length: ")
+					.append((body == null) ? 0 : body.length).append("\r\n");
+		}
+		response.append("Connection: ").append(keepAlive ? "keep-alive" : "close")
+				.append("\r\n\r\n");
+
+		out.write(response.toString().getBytes("US-ASCII"));
+		if (body != null && !head) {
+			out.write(body);
+		}
+	}
+
+	private static String getETag(byte[] data) {
+		CRC32 crc = new CRC32();
+		crc.update(data, 0, data.length);
+		return "\"" + Long.toHexString(crc.getValue()) + "-"
+				+ Integer.toHexString(data.length) + "\"";
+	}
+
+	// Reads a line ended by CRLF (or LF). Returns null at the end of the
+	// stream
+	private static String readLine(InputStream in) throws IOException {
+		StringBuilder line = new StringBuilder();
+		int c;
+		while ((c = in.read()) != -1) {
+			if (c == '\n') {
+				int length = line.length();
+				if (length > 0 && line.charAt(length - 1) == '\r') {
+					line.setLength(length - 1);
+				}
+				return line.toString();
+			}
+			if (line.length() >= MAX_LINE_LENGTH) {
+				throw new IOException("Request line too long");
+			}
+			line.append((char) c);
+		}
+		return (line.length() == 0) ? null : line.toString();
+	}
+
+	private static void closeQuietly(ServerSocket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// Nothing else to do
+		}
+	}
+
+	private static void closeQuietly(Socket socket) {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			// Nothing else to do
+		}
+	}
+}
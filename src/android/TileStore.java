@@ -0,0 +1,119 @@
+package com.suarez.cordova.mapsforge;
+
+import java.io.IOException;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Storage backend for the tile images of {@link MapsforgeCache}. The tiles
+ * are identified by their zoom and coordinates, and every tile has a path
+ * (or URL) that can be handed to the web view.
+ * 
+ * @author Adolfo Fernandez Suarez
+ * @version 0.1
+ */
+interface TileStore {
+
+	/**
+	 * Removes all the tiles from the store.
+	 */
+	void clear();
+
+	/**
+	 * Writes the pending tiles and releases the resources used by the store.
+	 */
+	void close();
+
+	/**
+	 * Writes the tiles that are still pending, if the store delays writes.
+	 */
+	void flush();
+
+	/**
+	 * Returns the encoded image of a tile.
+	 * 
+	 * @return The image, or null if the tile is not stored
+	 * @throws IOException
+	 */
+	byte[] getData(byte zoom, long x, long y) throws IOException;
+
+	/**
+	 * Returns a shared image stored through {@link #putShared(String, byte[])}.
+	 * 
+	 * @return The image, or null if it is not stored (stores that return the
+	 *         image in its URL do not keep it)
+	 * @throws IOException
+	 */
+	byte[] getSharedData(String name) throws IOException;
+
+	/**
+	 * Returns the path (or URL) of a shared image stored through
+	 * {@link #putShared(String, byte[])}.
+	 * 
+	 * @return The path, or null if the image is not stored
+	 */
+	String getSharedPath(String name);
+
+	/**
+	 * Returns the path (or URL) of a tile, so it can be used as the source of
+	 * an image in the web view.
+	 * 
+	 * @return The path, or null if the tile is not stored
+	 */
+	String getPath(byte zoom, long x, long y);
+
+	/**
+	 * Stores a tile, replacing the previous one if there is any.
+	 * 
+	 * @param data
+	 *            Encoded image
+	 * @return The path (or URL) of the stored tile
+	 * @throws IOException
+	 */
+	String put(byte zoom, long x, long y, byte[] data) throws IOException;
+
+	/**
+	 * Stores an image shared by many tiles, such as the image of the tiles
+	 * of a single color, replacing the previous one with the same name.
+	 * Shared images are not listed by {@link #scan()}.
+	 * 
+	 * @param name
+	 *            Name of the image, made of letters, digits and dashes
+	 * @param data
+	 *            Encoded image
+	 * @return The path (or URL) of the stored image
+	 * @throws IOException
+	 */
+	String putShared(String name, byte[] data) throws IOException;
+
+	/**
+	 * Removes a tile from the store.
+	 */
+	void remove(byte zoom, long x, long y);
+
+	/**
+	 * Removes many tiles from the store at once.
+	 * 
+	 * @param tiles
+	 *            Tiles of the partition of this store
+	 */
+	void removeAll(Collection<TileKey> tiles);
+
+	/**
+	 * Removes a shared image from the store.
+	 */
+	void removeShared(String name);
+
+	/**
+	 * Removes all the shared images from the store.
+	 */
+	void clearShared();
+
+	/**
+	 * Lists every tile in the store. It is used to rebuild the cache index,
+	 * so it may be slow.
+	 * 
+	 * @return One entry per tile, with the key {@code zoom/x/y}
+	 */
+	List<TileCacheIndex.Entry> scan();
+}
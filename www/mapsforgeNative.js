@@ -22,14 +22,74 @@ mapsforge_native.prototype = {
 		MARKER_BLACK: "marker_black",
 		MARKER_WHITE: "marker_white",
 		
+		FORMAT_FLOAT64: 1,
+		FORMAT_DELTA_INT32: 2,
+		
 		addMarker: function(params, success, error){
 			exec(success || this.doNothing, error || this.doNothing, "MapsforgePlugin", "native-marker", params);
 		},
 		
+		addMarkers: function(params, success, error){
+			exec(success || this.doNothing, error || this.doNothing, "MapsforgePlugin", "native-markers", params);
+		},
+		
+		addClusteredMarkers: function(params, success, error){
+			exec(success || this.doNothing, error || this.doNothing, "MapsforgePlugin", "native-cluster-markers", params);
+		},
+		
 		addPolyline: function(params, success, error){
 			exec(success || this.doNothing, error || this.doNothing, "MapsforgePlugin", "native-polyline", params);
 		},
+		
+		appendToPolyline: function(key, points, success, error){
+			exec(success || this.doNothing, error || this.doNothing, "MapsforgePlugin", "native-polyline-append", [key, points]);
+		},
 
+		packCoordinates: function(points, format){
+			format = format || this.FORMAT_FLOAT64;
+			var valueSize = (format == this.FORMAT_FLOAT64) ? 8 : 4;
+			var buffer = new ArrayBuffer(8 + valueSize * points.length);
+			var view = new DataView(buffer);
+			view.setInt32(0, format, true);
+			view.setInt32(4, points.length, true);
+			
+			var previous = [0, 0];
+			for (var i = 0; i < points.length; i++) {
+				if (format == this.FORMAT_FLOAT64) {
+					view.setFloat64(8 + 8 * i, points[i], true);
+				} else {
+					var value = Math.round(points[i] * 1000000);
+					view.setInt32(8 + 4 * i, value - previous[i % 2], true);
+					previous[i % 2] = value;
+				}
+			}
+			return buffer;
+		},
+		
+		addToLayerGroup: function(group, keys, success, error){
+			exec(success || this.doNothing, error || this.doNothing, "MapsforgePlugin", "native-group-add", [group, keys]);
+		},
+		
+		addRangeToLayerGroup: function(group, firstKey, count, success, error){
+			exec(success || this.doNothing, error || this.doNothing, "MapsforgePlugin", "native-group-add", [group, firstKey, count]);
+		},
+		
+		showLayerGroup: function(group, success, error){
+			exec(success || this.doNothing, error || this.doNothing, "MapsforgePlugin", "native-group-visible", [group, true]);
+		},
+		
+		hideLayerGroup: function(group, success, error){
+			exec(success || this.doNothing, error || this.doNothing, "MapsforgePlugin", "native-group-visible", [group, false]);
+		},
+		
+		clearLayerGroup: function(group, success, error){
+			exec(success || this.doNothing, error || this.doNothing, "MapsforgePlugin", "native-group-clear", [group]);
+		},
+		
+		orderLayerGroups: function(groups, success, error){
+			exec(success || this.doNothing, error || this.doNothing, "MapsforgePlugin", "native-group-order", [groups]);
+		},
+		
 		deleteLayer: function(key, success, error){
 			exec(success || this.doNothing, error || this.doNothing, "MapsforgePlugin", "native-delete-layer", [key]);
 		},
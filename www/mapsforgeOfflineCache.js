@@ -5,6 +5,12 @@ function mapsforge_cache(){
 };
 
 mapsforge_cache.prototype = {
+		STORAGE_DIRECTORY: "directory",
+		STORAGE_MBTILES: "mbtiles",
+		FORMAT_PNG: "png",
+		FORMAT_JPEG: "jpeg",
+		FORMAT_WEBP: "webp",
+		FORMAT_WEBP_LOSSLESS: "webp-lossless",
 		
 		initialize: function(absoluteMapFilePath, success, error){
 			exec(success || this.doNothing, error || this.doNothing, "MapsforgePlugin", "cache-initialize", [absoluteMapFilePath]);
@@ -14,14 +20,38 @@ mapsforge_cache.prototype = {
 			exec(success || this.doNothing, error || this.doNothing, "MapsforgePlugin", "cache-clean-destroy", [destroyCache]);
 		},
 		
+		getStats: function(success, error){
+			exec(success || this.doNothing, error || this.doNothing, "MapsforgePlugin", "cache-stats", []);
+		},
+
 		getTile: function(params, success, error){
 			exec(success || this.doNothing, error || this.doNothing, "MapsforgePlugin", "cache-get-tile", params);
 		},
 
+		getTiles: function(tiles, success, error){
+			exec(success || this.doNothing, error || this.doNothing, "MapsforgePlugin", "cache-get-tiles", [tiles]);
+		},
+
 		onDestroy: function(success, error){
 			exec(success || this.doNothing, error || this.doNothing, "MapsforgePlugin", "cache-destroy", []);
 		},
 		
+		seed: function(bounds, minZoom, maxZoom, progress, error){
+			exec(progress || this.doNothing, error || this.doNothing, "MapsforgePlugin", "cache-seed", [bounds, minZoom, maxZoom]);
+		},
+
+		cancelSeed: function(seedId, success, error){
+			exec(success || this.doNothing, error || this.doNothing, "MapsforgePlugin", "cache-seed-cancel", [seedId]);
+		},
+
+		pauseSeed: function(seedId, success, error){
+			exec(success || this.doNothing, error || this.doNothing, "MapsforgePlugin", "cache-seed-pause", [seedId]);
+		},
+
+		resumeSeed: function(seedId, success, error){
+			exec(success || this.doNothing, error || this.doNothing, "MapsforgePlugin", "cache-seed-resume", [seedId]);
+		},
+
 		setCacheCleaningTrigger: function(sizeInMegabytes, success, error){
 			exec(success || this.doNothing, error || this.doNothing, "MapsforgePlugin", "cache-cleaning-trigger", [sizeInMegabytes]);
 		},
@@ -42,6 +72,10 @@ mapsforge_cache.prototype = {
 			exec(success || this.doNothing, error || this.doNothing, "MapsforgePlugin", "cache-map-path", [absoluteMapFilePath]);
 		},
 
+		setMapFiles: function(absoluteMapFilePaths, success, error){
+			exec(success || this.doNothing, error || this.doNothing, "MapsforgePlugin", "cache-map-files", [absoluteMapFilePaths]);
+		},
+
 		setMaxCacheAge: function(ageInMilliseconds, success, error){
 			exec(success || this.doNothing, error || this.doNothing, "MapsforgePlugin", "cache-max-age", [ageInMilliseconds]);
 		},
@@ -50,18 +84,54 @@ mapsforge_cache.prototype = {
 			exec(success || this.doNothing, error || this.doNothing, "MapsforgePlugin", "cache-max-size", [sizeInMegaBytes]);
 		},
 		
+		setMemoryCacheSize: function(sizeInMegaBytes, success, error){
+			exec(success || this.doNothing, error || this.doNothing, "MapsforgePlugin", "cache-memory-size", [sizeInMegaBytes]);
+		},
+		
+		setMetatileSize: function(metatileSize, success, error){
+			exec(success || this.doNothing, error || this.doNothing, "MapsforgePlugin", "cache-metatile", [metatileSize]);
+		},
+		
+		setDeduplication: function(enabled, success, error){
+			exec(success || this.doNothing, error || this.doNothing, "MapsforgePlugin", "cache-dedupe", [enabled]);
+		},
+		
 		setOverdrawFactor: function(overdrawFactor, success, error){
 			exec(success || this.doNothing, error || this.doNothing, "MapsforgePlugin", "cache-overdraw", [overdrawFactor]);
 		},
 		
+		setRendererCount: function(rendererCount, success, error){
+			exec(success || this.doNothing, error || this.doNothing, "MapsforgePlugin", "cache-renderer-count", [rendererCount]);
+		},
+		
 		setScreenRatio: function(screenRatio, success, error){
 			exec(success || this.doNothing, error || this.doNothing, "MapsforgePlugin", "cache-screen-ratio", [screenRatio]);
 		},
 
+		setViewport: function(bounds, zoom, success, error){
+			exec(success || this.doNothing, error || this.doNothing, "MapsforgePlugin", "cache-viewport", [bounds, zoom]);
+		},
+
+		setStorageType: function(storageType, success, error){
+			exec(success || this.doNothing, error || this.doNothing, "MapsforgePlugin", "cache-storage", [storageType]);
+		},
+
+		startTileServer: function(port, success, error){
+			exec(success || this.doNothing, error || this.doNothing, "MapsforgePlugin", "cache-server-start", [port || 0]);
+		},
+
+		stopTileServer: function(success, error){
+			exec(success || this.doNothing, error || this.doNothing, "MapsforgePlugin", "cache-server-stop", []);
+		},
+
 		setThemePath: function(themePath, success, error){
 			exec(success || this.doNothing, error || this.doNothing, "MapsforgePlugin", "cache-theme-path", [themePath]);
 		},
 
+		setTileFormat: function(format, quality, success, error){
+			exec(success || this.doNothing, error || this.doNothing, "MapsforgePlugin", "cache-format", (quality === undefined || quality === null) ? [format] : [format, quality]);
+		},
+		
 		setTileSize: function(tileSize, success, error){
 			exec(success || this.doNothing, error || this.doNothing, "MapsforgePlugin", "cache-tile-size", [tileSize]);
 		}